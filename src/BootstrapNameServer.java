@@ -10,20 +10,25 @@ public class BootstrapNameServer extends NameServer {
     /* ******* MAIN ******* */
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Error : Bootstrap Name Server requires config file argument");
+        if (args.length != 1 && !(args.length == 2 && args[1].equals(HEADLESS))) {
+            System.out.println("Error : Bootstrap Name Server requires config file argument, and optionally " + HEADLESS);
             System.exit(0);
         }
-        BootstrapNameServer bootstrap = new BootstrapNameServer(args[0]);
+        BootstrapNameServer bootstrap = new BootstrapNameServer(args[0], args.length == 2);
     }
 
     /* ******* CONSTRUCTOR ******* */
 
     public BootstrapNameServer(String configFile) {
+        this(configFile, false);
+    }
+
+    public BootstrapNameServer(String configFile, boolean headless) {
 
         parseConfigFile(configFile);
 
         // Init Bootstrap as FIRST and ONLY Name Server
+        startIndex = id;
         endIndex = id - 1;
         if (endIndex == -1)
             endIndex = HASH_SIZE -1;
@@ -32,16 +37,45 @@ public class BootstrapNameServer extends NameServer {
         prevServer = new NameServerStub(ip, listenPort, 0);
 
         prompt = "Bootstrap > ";
+        registered = true;
 
         System.out.println("ID: " + id);
         System.out.println("Port: " + listenPort);
 
-        UserThread user = new UserThread();
-        user.start();
+        if (!headless) {
+            UserThread user = new UserThread();
+            user.start();
+        }
+
+        if (CAPTURE_FILE != null)
+            startCapture(CAPTURE_FILE);
 
         ListenerThread listenThread = new ListenerThread();
         listenThread.start();
 
+        ReaperThread reaperThread = new ReaperThread();
+        reaperThread.start();
+
+        FlightReaperThread flightReaperThread = new FlightReaperThread();
+        flightReaperThread.start();
+
+        IndexThread indexThread = new IndexThread();
+        indexThread.start();
+
+        WatchThread watchThread = new WatchThread();
+        watchThread.start();
+
+        SummaryThread summaryThread = new SummaryThread();
+        summaryThread.start();
+
+        RebalanceThread rebalanceThread = new RebalanceThread();
+        rebalanceThread.start();
+
+        // The bootstrap is just the first member, any node can seed a join
+        joinMembership();
+        GossipThread gossipThread = new GossipThread();
+        gossipThread.start();
+
     }
 
     /* ******* METHODS ******* */
@@ -96,6 +130,8 @@ public class BootstrapNameServer extends NameServer {
                 String value = pairs[1];
                 synchronized (mapMutex) {
                     map[key] = value;
+                    versions[key]++;
+                    keyChanged(key, null);
                 }
             }
 
@@ -107,6 +143,19 @@ public class BootstrapNameServer extends NameServer {
 
     }
 
+    // The bootstrap anchors the ring, it never joins or leaves it
+    @Override
+    protected boolean joinRing(String seedIp, int seedPort) {
+        System.out.println("Error : The Bootstrap Name Server is always in the system");
+        return false;
+    }
+
+    @Override
+    protected boolean leaveRing() {
+        System.out.println("Error : The Bootstrap Name Server cannot leave the system");
+        return false;
+    }
+
     private class UserThread extends Thread implements Runnable {
 
         UserThread() {
@@ -141,19 +190,26 @@ public class BootstrapNameServer extends NameServer {
                                     System.out.println("Error : lookup requires a single argument [key].");
                                 else
                                     try {
-                                        lookup(Integer.parseInt(tokens[1]));
+                                        lookupKey(Integer.parseInt(tokens[1]));
                                     } catch (NumberFormatException e) {
                                         System.out.println("Error : " + tokens[1] + " is not a number.");
                                     }
                                 break;
+                            case "reverse":
+                                if (tokens.length != 2)
+                                    System.out.println("Error : reverse requires a single argument [value].");
+                                else
+                                    reverseLookup(tokens[1]);
+                                break;
                             case "insert":
-                                if (tokens.length != 3) {
-                                    System.out.println("Error : insert requires two arguments [key] and [value].");
+                                if (tokens.length != 3 && tokens.length != 4) {
+                                    System.out.println("Error : insert requires [key] and [value], and an optional [ttl] in seconds.");
                                 } else {
                                     try {
-                                        insert(Integer.parseInt(tokens[1]), tokens[2]);
+                                        long ttl = tokens.length == 4 ? Long.parseLong(tokens[3]) : 0;
+                                        insertKey(Integer.parseInt(tokens[1]), tokens[2], ttl);
                                     } catch (NumberFormatException e) {
-                                        System.out.println("Error : " + tokens[1] + " is not a number.");
+                                        System.out.println("Error : Key and ttl must be numbers.");
                                     }
                                 }
                                 break;
@@ -162,17 +218,35 @@ public class BootstrapNameServer extends NameServer {
                                     System.out.println("Error : delete requires a single argument [key].");
                                 } else {
                                     try {
-                                        delete(Integer.parseInt(tokens[1]));
+                                        deleteKey(Integer.parseInt(tokens[1]));
                                     } catch (NumberFormatException e) {
                                         System.out.println("Error : " + tokens[1] + " is not a number.");
                                     }
                                 }
                                 break;
+                            case PUT:
+                            case PUT_IF_ABSENT:
+                            case REPLACE:
+                            case CAS:
+                                writeCommand(tokens);
+                                break;
                             case "status":
                                 printMap();
-                                System.out.println("\nCovering the range " + id + " to " + endIndex);
+                                System.out.println("\nCovering the range " + startIndex + " to " + endIndex);
                                 System.out.println("Previous Name Server: " + prevServer.getId());
                                 System.out.println("Next Name Server: " + nextServer.getId());
+                                System.out.println("Admitted " + admitted.get() + " client request(s), turned away "
+                                        + rejected.get() + " as busy");
+                                System.out.println("Sent " + framesSent.get() + " frame(s), " + charsSent.get() + " characters");
+                                System.out.println("Answered " + summaryMisses.get() + " lookup(s) for missing keys from summaries");
+                                System.out.println("Coalesced " + coalesced.get() + " forward(s) into " + batches.get() + " frame(s)");
+                                System.out.println("Captured " + captured.get() + " message(s), dropped " + captureDropped.get());
+                                break;
+                            case "members":
+                                printMembers();
+                                break;
+                            case "capture":
+                                captureCommand(tokens);
                                 break;
                             case "":
                                 break;
@@ -194,92 +268,6 @@ public class BootstrapNameServer extends NameServer {
             System.out.println("\nGoodbye.");
         }
 
-        private void lookup(int key) throws IOException {
-
-            if (key < 0 || key >= HASH_SIZE) {
-                System.out.println("Error : Invalid key");
-                return;
-            }
-
-            if (isInRange(key)) {
-                String value;
-                synchronized (mapMutex) {
-                    value = map[key];
-                }
-                if (value == null) {
-                    System.out.print(parseTrace(Integer.toString(id), true));
-                    System.out.println("Key not found.");
-                } else {
-                    System.out.print(parseTrace(Integer.toString(id), true));
-                    System.out.println("Success! Found \"" + value + "\" on Name Server " + id);
-                }
-            } else {
-                // System.out.println("Calling LOOKUP on next name server");
-                String trace = Integer.toString(id);
-                String message = LOOKUP + " " + key + " " + trace;
-                sendMessage(message, getNextIp(), getNextPort());
-            }
-        }
-
-        private void insert(int key, String value) throws IOException {
-
-            if (key < 0 || key >= HASH_SIZE) {
-                System.out.println("Error : Invalid key");
-                return;
-            }
-
-            if (isInRange(key)) {
-                synchronized (mapMutex) {
-                    if (map[key] == null) {
-                        map[key] = value;
-                        System.out.print(parseTrace(Integer.toString(id), true));
-                        System.out.println("Successfully added (" + key + ", " + value + ") to Name Server " + id);
-                    } else {
-                        System.out.print(parseTrace(Integer.toString(id), true));
-                        System.out.println("Error : Value \"" + map[key] + "\" already associated with key " + key);
-                    }
-                }
-            } else {
-                // System.out.println("Calling INSERT on next name server");
-
-                // COMMAND CONSTANT
-                String trace = Integer.toString(id);
-                String message = INSERT + " " + key + " " + value + " " + trace;
-                sendMessage(message, getNextIp(), getNextPort());
-            }
-        }
-
-        private void delete(int key) throws IOException {
-
-            if (key < 0 || key >= HASH_SIZE) {
-                System.out.println("Error : Invalid key");
-                return;
-            }
-
-            if (isInRange(key)) {
-                synchronized (mapMutex) {
-                    String value = map[key];
-                    if (value == null) {
-                        System.out.print(parseTrace(Integer.toString(id), true));
-                        System.out.println("Key not found.");
-                    } else {
-                        map[key] = null;
-                        System.out.print(parseTrace(Integer.toString(id), true));
-                        System.out.println("Successful deletion");
-                    }
-                }
-
-
-            } else {
-                // System.out.println("Calling DELETE on next name server");
-
-                // COMMAND CONSTANT
-                String trace = Integer.toString(id);
-                String message = DELETE + " " + key + " " + trace;
-                sendMessage(message, getNextIp(), getNextPort());
-            }
-        }
-
         private void quit() throws IOException {
             // Signal to nextServer to quit
             // Resume on reply and wait for response from last quitting server
@@ -0,0 +1,248 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Seeds a running ring from a (large) "key value" file without pushing every
+ * record through the bootstrap. The file is memory mapped and parsed in
+ * parallel, the records are partitioned by the current ring view and each
+ * partition is sent directly to its owner as BULK_INSERT batches.
+ *
+ * Usage: java BulkLoader [entry ip] [entry port] [data file]
+ */
+public class BulkLoader extends NameServer {
+
+    /* ******* MAIN ******* */
+
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.out.println("Error : Bulk loader requires [entry ip] [entry port] [data file]");
+            System.exit(0);
+        }
+
+        int port;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Error : " + args[1] + " is not a number.");
+            return;
+        }
+
+        try {
+            new BulkLoader(args[0], port).load(new File(args[2]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error : Bulk load failed.");
+        }
+    }
+
+    /* ******* FIELDS ******* */
+
+    // Lines are never longer than a frame, so this much overlap always finishes a line
+    private static final int CHUNK_OVERLAP = 65536;
+    private static final long MAX_CHUNK = 256L * 1024 * 1024;
+
+    private final String entryIp;
+    private final int entryPort;
+
+    /* ******* CONSTRUCTORS ******* */
+
+    public BulkLoader(String entryIp, int entryPort) {
+        this.entryIp = entryIp;
+        this.entryPort = entryPort;
+        try {
+            ip = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            ip = "127.0.0.1";
+        }
+    }
+
+    /* ******* METHODS ******* */
+
+    public void load(File file) throws IOException {
+        if (!file.exists() || file.isDirectory()) {
+            System.out.println("Error : Invalid data file.");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        List<RingNode> ring = fetchRing(entryIp, entryPort);
+        System.out.println("Ring has " + ring.size() + " Name Server(s)");
+
+        String[] values = new String[HASH_SIZE];
+        long records = parse(file, values);
+        long parsed = System.currentTimeMillis();
+
+        int sent = send(ring, values);
+        long done = System.currentTimeMillis();
+
+        System.out.println("Parsed " + records + " records in " + (parsed - start) + " ms");
+        System.out.println("Sent " + sent + " keys to " + ring.size() + " Name Server(s) in " + (done - parsed) + " ms");
+    }
+
+    // Splits the file into line aligned chunks, parses them in parallel and keeps the last value per key
+    private long parse(File file, String[] values) throws IOException {
+        long size = file.length();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunks = (int) Math.max(threads, (size + MAX_CHUNK - 1) / MAX_CHUNK);
+        long chunkSize = Math.max(1, (size + chunks - 1) / chunks);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<ChunkResult>> results = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            for (long from = 0; from < size; from += chunkSize) {
+                long to = Math.min(size, from + chunkSize);
+                final long chunkStart = from;
+                results.add(pool.submit(() -> parseChunk(channel, size, chunkStart, to)));
+            }
+
+            // Merge in file order so later lines win, like the original line by line load
+            long records = 0;
+            for (Future<ChunkResult> f : results) {
+                ChunkResult r = f.get();
+                records += r.records;
+                for (int i = 0; i < HASH_SIZE; i++) {
+                    if (r.values[i] != null)
+                        values[i] = r.values[i];
+                }
+            }
+            return records;
+        } catch (Exception e) {
+            throw new IOException("Failed to parse " + file, e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Parses every line that starts inside [start, end)
+    private static ChunkResult parseChunk(FileChannel channel, long size, long start, long end) throws IOException {
+        long mapStart = Math.max(0, start - 1);
+        long mapEnd = Math.min(size, end + CHUNK_OVERLAP);
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+
+        ChunkResult result = new ChunkResult();
+        int limit = (int) (end - mapStart);
+        int pos = (int) (start - mapStart);
+
+        // Skip the partial line owned by the previous chunk
+        if (start > 0 && buf.get(pos - 1) != '\n') {
+            while (pos < buf.limit() && buf.get(pos) != '\n')
+                pos++;
+            pos++;
+        }
+
+        byte[] scratch = new byte[256];
+        while (pos < limit && pos < buf.limit()) {
+
+            // Key, capped at HASH_SIZE so a long digit run can't wrap around into a valid one
+            int key = 0;
+            int digits = 0;
+            while (pos < buf.limit() && buf.get(pos) >= '0' && buf.get(pos) <= '9') {
+                if (key < HASH_SIZE)
+                    key = key * 10 + (buf.get(pos) - '0');
+                pos++;
+                digits++;
+            }
+            while (pos < buf.limit() && buf.get(pos) == ' ')
+                pos++;
+
+            // Value, up to the next space or end of line
+            int len = 0;
+            while (pos < buf.limit()) {
+                byte b = buf.get(pos);
+                if (b == ' ' || b == '\n' || b == '\r')
+                    break;
+                if (len == scratch.length) {
+                    byte[] bigger = new byte[scratch.length * 2];
+                    System.arraycopy(scratch, 0, bigger, 0, len);
+                    scratch = bigger;
+                }
+                scratch[len++] = b;
+                pos++;
+            }
+
+            // Rest of the line
+            while (pos < buf.limit() && buf.get(pos) != '\n')
+                pos++;
+            pos++;
+
+            if (digits == 0 || len == 0 || key < 0 || key >= HASH_SIZE)
+                continue;
+
+            result.values[key] = new String(scratch, 0, len, StandardCharsets.UTF_8);
+            result.records++;
+        }
+        return result;
+    }
+
+    // Streams each owner's partition to it concurrently, in batches
+    private int send(List<RingNode> ring, String[] values) throws IOException {
+        List<List<StringBuilder>> partitions = new ArrayList<>();
+        for (int n = 0; n < ring.size(); n++)
+            partitions.add(new ArrayList<>());
+
+        // Bytes in each partition's last batch
+        int[] sizes = new int[ring.size()];
+        int keys = 0;
+        for (int key = 0; key < HASH_SIZE; key++) {
+            if (values[key] == null)
+                continue;
+            keys++;
+
+            int owner = ownerOf(ring, key);
+            List<StringBuilder> batches = partitions.get(owner);
+            String entry = key + "," + escapeValue(values[key]);
+            int size = utfLength(entry, 0, entry.length()) + 1;
+            StringBuilder batch = batches.isEmpty() ? null : batches.get(batches.size() - 1);
+            if (batch == null || sizes[owner] + size > MAX_BATCH) {
+                batch = new StringBuilder();
+                batches.add(batch);
+                sizes[owner] = 0;
+            } else {
+                batch.append(";");
+            }
+            batch.append(entry);
+            sizes[owner] += size;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, ring.size()));
+        List<Future<?>> pending = new ArrayList<>();
+        for (int n = 0; n < ring.size(); n++) {
+            final RingNode node = ring.get(n);
+            final List<StringBuilder> batches = partitions.get(n);
+            pending.add(pool.submit(() -> {
+                for (StringBuilder batch : batches)
+                    sendMessage(BULK_INSERT + " " + encodeData(batch.toString()), node.ip, node.port);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> f : pending)
+                f.get();
+        } catch (Exception e) {
+            throw new IOException("Failed to send batches", e);
+        } finally {
+            pool.shutdown();
+        }
+        return keys;
+    }
+
+    /* ******* HELPER CLASSES ******* */
+
+    private static class ChunkResult {
+        final String[] values = new String[HASH_SIZE];
+        long records;
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * Scriptable counterpart of the Name Server console, for nodes started with
+ * --headless. Sends one ADMIN command, waits for the node's answer and prints
+ * it as a single line of JSON. Exits 0 when the node reports success.
+ *
+ * Usage: java NameAdmin [ip] [port] join [seed ip] [seed port]
+ *        java NameAdmin [ip] [port] leave | drain | status
+ *        java NameAdmin [ip] [port] range [from] [to]
+ *        java NameAdmin [ip] [port] capture [file name] | off   (written into the node's -Dns.captureDir)
+ */
+public class NameAdmin extends NameServer {
+
+    // Joins wait for the range transfer and drains for the handoff
+    private static final int REPLY_TIMEOUT = JOIN_TIMEOUT + 10000;
+    private static final int SEND_TIME = 5;
+
+    /* ******* MAIN ******* */
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Error : Name Admin requires [ip] [port] [join|leave|drain|status|range|capture] [args]");
+            System.exit(2);
+        }
+
+        int port;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Error : " + args[1] + " is not a number.");
+            System.exit(2);
+            return;
+        }
+
+        StringBuilder extra = new StringBuilder();
+        for (int i = 3; i < args.length; i++)
+            extra.append(' ').append(args[i]);
+
+        try {
+            String reply = new NameAdmin().call(args[0], port, args[2].toLowerCase() + extra);
+            System.out.println(reply);
+            System.exit(reply.startsWith("{\"ok\":true") ? 0 : 1);
+        } catch (SocketTimeoutException e) {
+            System.out.println("Error : No answer from " + args[0] + ":" + port);
+        } catch (IOException e) {
+            System.out.println("Error : Could not reach " + args[0] + ":" + port);
+        }
+        System.exit(1);
+    }
+
+    /* ******* CONSTRUCTORS ******* */
+
+    public NameAdmin() {
+        try {
+            ip = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            ip = "127.0.0.1";
+        }
+    }
+
+    /* ******* METHODS ******* */
+
+    private String call(String nodeIp, int nodePort, String command) throws IOException {
+        try (ServerSocket replySocket = new ServerSocket(0)) {
+            replySocket.setSoTimeout(REPLY_TIMEOUT);
+
+            String[] tokens = command.split(" ", 2);
+            String message = ADMIN + " " + tokens[0] + " " + ip + " " + replySocket.getLocalPort()
+                    + (tokens.length == 2 ? " " + tokens[1] : "");
+            sendMessage(message, nodeIp, nodePort, SEND_TIME);
+
+            // Anything other than our reply is a stray, keep waiting
+            while (true) {
+                try (Socket sock = replySocket.accept();
+                     DataInputStream in = new DataInputStream(sock.getInputStream())) {
+                    String reply = in.readUTF();
+                    if (reply.startsWith(ADMIN_REPLY + " "))
+                        return decodeData(reply.substring(ADMIN_REPLY.length() + 1));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Console client that keeps a versioned view of the ring and sends each
+ * request straight to the Name Server owning its key, one hop instead of
+ * walking the ring. The view is fetched from the entry node and refreshed
+ * incrementally; a node that gets a request it no longer owns passes it on
+ * and sends back its own view, so joins and exits correct the client by
+ * themselves. Each request carries this client's reply address, so the
+ * owner answers here directly. Watches keep a connection open from each
+ * owner, their change events are printed as they arrive.
+ *
+ * Usage: java NameClient [entry ip] [entry port]
+ */
+public class NameClient extends NameServer {
+
+    /* ******* MAIN ******* */
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Error : Name Client requires [entry ip] [entry port]");
+            System.exit(0);
+        }
+
+        int port;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Error : " + args[1] + " is not a number.");
+            return;
+        }
+
+        try {
+            new NameClient(args[0], port).run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error : Could not reach the ring.");
+        }
+    }
+
+    /* ******* FIELDS ******* */
+
+    private final String entryIp;
+    private final int entryPort;
+
+    // Between incremental refreshes of the view
+    private static final int VIEW_REFRESH = 5000;
+
+    private ServerSocket replySocket;
+    // Ring view by node id, guarded by itself
+    private final Map<Integer, RingNode> view = new TreeMap<>();
+    private int corrections;
+
+    /* ******* CONSTRUCTORS ******* */
+
+    public NameClient(String entryIp, int entryPort) {
+        this.entryIp = entryIp;
+        this.entryPort = entryPort;
+        prompt = "Client > ";
+        try {
+            ip = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            ip = "127.0.0.1";
+        }
+    }
+
+    /* ******* METHODS ******* */
+
+    private void run() throws IOException {
+        replySocket = new ServerSocket(0);
+        listenPort = replySocket.getLocalPort();
+
+        refresh(entryIp, entryPort);
+        System.out.println("Routing requests over " + liveNodes() + " Name Server(s)");
+
+        ReplyThread replies = new ReplyThread();
+        replies.setDaemon(true);
+        replies.start();
+
+        RefreshThread refresher = new RefreshThread();
+        refresher.setDaemon(true);
+        refresher.start();
+
+        Scanner in = new Scanner(System.in);
+        while (true) {
+            System.out.print(prompt);
+            if (!in.hasNextLine())
+                break;
+
+            String[] tokens = in.nextLine().split(" ");
+            String command = tokens[0].toLowerCase();
+
+            try {
+                switch (command) {
+                    case "lookup":
+                    case "delete":
+                        if (tokens.length != 2) {
+                            System.out.println("Error : " + command + " requires a single argument [key].");
+                            break;
+                        }
+                        send(Integer.parseInt(tokens[1]), (command.equals("lookup") ? LOOKUP : DELETE) + " " + tokens[1]
+                                + " " + NO_TRACE + " " + ip + " " + listenPort);
+                        break;
+                    case "reverse":
+                        if (tokens.length != 2) {
+                            System.out.println("Error : reverse requires a single argument [value].");
+                            break;
+                        }
+                        int slot = valueSlot(tokens[1]);
+                        send(slot, REVERSE_LOOKUP + " " + slot + " " + tokens[1] + " " + NO_TRACE
+                                + " " + ip + " " + listenPort);
+                        break;
+                    case "watch":
+                    case "unwatch":
+                        if (tokens.length != 2 && tokens.length != 3) {
+                            System.out.println("Error : " + command + " requires a [key] or a range [from] [to].");
+                            break;
+                        }
+                        int from = Integer.parseInt(tokens[1]);
+                        int to = tokens.length == 3 ? Integer.parseInt(tokens[2]) : from;
+                        if (from < 0 || from >= HASH_SIZE || to < 0 || to >= HASH_SIZE) {
+                            System.out.println("Error : Invalid key");
+                            break;
+                        }
+                        send(from, (command.equals("watch") ? WATCH : UNWATCH) + " " + from + " " + to + " " + NO_TRACE
+                                + " " + ip + " " + listenPort);
+                        break;
+                    case "insert":
+                        if (tokens.length != 3 && tokens.length != 4) {
+                            System.out.println("Error : insert requires [key] and [value], and an optional [ttl] in seconds.");
+                            break;
+                        }
+                        int key = Integer.parseInt(tokens[1]);
+                        long ttl = tokens.length == 4 ? Long.parseLong(tokens[3]) : 0;
+                        send(key, INSERT + " " + tokens[1] + " " + tokens[2] + " " + NO_TRACE
+                                + " " + ip + " " + listenPort + " " + ttl);
+                        break;
+                    case PUT:
+                    case PUT_IF_ABSENT:
+                    case REPLACE:
+                    case CAS:
+                        writeCommand(tokens);
+                        break;
+                    case "refresh":
+                        System.out.println(refresh(entryIp, entryPort) + " entr(ies) changed, routing requests over "
+                                + liveNodes() + " Name Server(s)");
+                        break;
+                    case "view":
+                        printView();
+                        break;
+                    case "":
+                        break;
+                    case "quit":
+                    case "exit":
+                        replySocket.close();
+                        System.out.println("\nGoodbye.");
+                        return;
+                    default:
+                        System.out.println("Invalid command \"" + command + "\"");
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Error : " + tokens[1] + " is not a number.");
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("\nError : Communication with the ring failed.");
+            }
+        }
+    }
+
+    @Override
+    protected void writeKey(String op, int key, String expected, String value) throws IOException {
+        if (key < 0 || key >= HASH_SIZE) {
+            System.out.println("Error : Invalid key");
+            return;
+        }
+        send(key, op + " " + key + " " + expected + " " + value + " " + NO_TRACE + " " + ip + " " + listenPort);
+    }
+
+    // Straight to the owner when the view has one, otherwise the entry node routes it
+    private void send(int key, String message) throws IOException {
+        RingNode owner = null;
+        synchronized (view) {
+            for (RingNode node : view.values()) {
+                if (node.covers(key)) {
+                    owner = node;
+                    break;
+                }
+            }
+        }
+        if (owner != null) {
+            // A node that just died may still be in the view, give up on it quickly and let the entry node route
+            try {
+                sendMessage(DIRECT + " " + message, owner.ip, owner.port, FORWARD_TIME);
+                return;
+            } catch (IOException e) {
+                // Falls through to the entry node
+            }
+        }
+        sendMessage(message, entryIp, entryPort);
+    }
+
+    // Pulls only the entries that changed since our versions
+    private int refresh(String nodeIp, int nodePort) throws IOException {
+        Map<Integer, RingNode> known;
+        synchronized (view) {
+            known = new TreeMap<>(view);
+        }
+        String update = fetchView(nodeIp, nodePort, known);
+        synchronized (view) {
+            return mergeView(view, update);
+        }
+    }
+
+    private int liveNodes() {
+        int live = 0;
+        synchronized (view) {
+            for (RingNode node : view.values()) {
+                if (node.endIndex >= 0)
+                    live++;
+            }
+        }
+        return live;
+    }
+
+    // The view's version is its newest entry's
+    private void printView() {
+        synchronized (view) {
+            long version = 0;
+            for (RingNode node : view.values()) {
+                version = Math.max(version, node.version);
+                if (node.endIndex >= 0)
+                    System.out.println(node.id + " " + node.ip + ":" + node.port + " [" + node.startIndex + ", "
+                            + node.endIndex + "] (" + node.version + ")");
+            }
+            System.out.println("View version " + version + ", corrected " + corrections + " time(s) by a wrong owner");
+        }
+    }
+
+    private class RefreshThread extends Thread implements Runnable {
+
+        @Override
+        public void run() {
+            while (!replySocket.isClosed()) {
+                try {
+                    Thread.sleep(VIEW_REFRESH);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Any node we know can answer, the entry node may have left since
+                List<RingNode> live = new ArrayList<>();
+                synchronized (view) {
+                    for (RingNode node : view.values()) {
+                        if (node.endIndex >= 0)
+                            live.add(node);
+                    }
+                }
+                try {
+                    if (live.isEmpty())
+                        refresh(entryIp, entryPort);
+                    else {
+                        RingNode source = live.get(ThreadLocalRandom.current().nextInt(live.size()));
+                        refresh(source.ip, source.port);
+                    }
+                } catch (IOException e) {
+                    // Tried again next round, wrong owner replies keep correcting us meanwhile
+                }
+            }
+        }
+    }
+
+    private class ReplyThread extends Thread implements Runnable {
+
+        @Override
+        public void run() {
+            while (!replySocket.isClosed()) {
+                try {
+                    Socket sock = replySocket.accept();
+                    StreamThread stream = new StreamThread(sock);
+                    stream.setDaemon(true);
+                    stream.start();
+                } catch (IOException e) {
+                    // Socket closed on quit
+                }
+            }
+        }
+    }
+
+    // Replies come one per connection, watch events keep coming over the same one until the owner closes it
+    private class StreamThread extends Thread implements Runnable {
+
+        private final Socket sock;
+
+        StreamThread(Socket sock) {
+            this.sock = sock;
+        }
+
+        @Override
+        public void run() {
+            try (Socket s = sock;
+                 DataInputStream in = new DataInputStream(s.getInputStream())) {
+                while (true)
+                    show(in.readUTF());
+            } catch (IOException e) {
+                // Stream closed by the sender
+            }
+        }
+
+        private void show(String message) {
+            String[] tokens = message.split(" ", 5);
+            String text;
+            switch (tokens[0]) {
+                case WRONG_OWNER:
+                    // The request itself was passed on, its answer comes separately
+                    if (tokens.length == 2) {
+                        synchronized (view) {
+                            if (mergeView(view, tokens[1]) > 0)
+                                corrections++;
+                        }
+                    }
+                    return;
+                case PRINT:
+                    text = message.substring(PRINT.length() + 1);
+                    break;
+                case WATCH_EVENT:
+                    if (tokens.length != 5)
+                        return;
+                    if (tokens[4].equals(NO_TRACE))
+                        text = "Watch : key " + tokens[1] + " deleted (version " + tokens[2] + ") on Name Server " + tokens[3];
+                    else
+                        text = "Watch : key " + tokens[1] + " = \"" + tokens[4] + "\" (version " + tokens[2]
+                                + ") on Name Server " + tokens[3];
+                    break;
+                case WATCH_MOVED:
+                    if (tokens.length != 4)
+                        return;
+                    text = "Watch : keys " + tokens[1] + " to " + tokens[2] + " now served by Name Server " + tokens[3];
+                    break;
+                case WATCH_DROPPED:
+                    // watch_dropped <owner> <reason>
+                    tokens = message.split(" ", 3);
+                    if (tokens.length != 3)
+                        return;
+                    text = "Watch : Name Server " + tokens[1] + " dropped all your watches on it, " + tokens[2]
+                            + ". Watch again to resume";
+                    break;
+                default:
+                    return;
+            }
+            synchronized (System.out) {
+                System.out.println();
+                System.out.println(text);
+                System.out.print(prompt);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a workload captured with -Dns.capture or the capture command against
+ * a running ring. Only requests that came straight from a client are re-issued,
+ * forwarded copies and ring traffic are the ring's own business. Every request
+ * in flight gets a reply port of its own so each one is timed separately, and
+ * the number of Name Servers it visited is read off the reply's trace.
+ *
+ * Usage: java NameReplay [capture file] [entry ip] [entry port] [speed] [-save file] [-compare file]
+ *   speed 1 keeps the captured pace, 4 is four times as fast, 0 sends as fast as replies come back
+ *   -save writes the results so a later run, e.g. on another build, can -compare against them
+ */
+public class NameReplay extends NameServer {
+
+    /* ******* MAIN ******* */
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Error : Name Replay requires [capture file] [entry ip] [entry port] [speed] [-save file] [-compare file]");
+            System.exit(2);
+        }
+
+        int port;
+        double speed = 1;
+        String save = null;
+        String compare = null;
+        try {
+            port = Integer.parseInt(args[2]);
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].equals("-save") && i + 1 < args.length)
+                    save = args[++i];
+                else if (args[i].equals("-compare") && i + 1 < args.length)
+                    compare = args[++i];
+                else
+                    speed = Double.parseDouble(args[i]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error : Port and speed must be numbers.");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            NameReplay replay = new NameReplay(args[1], port);
+            List<Record> records = replay.read(args[0]);
+            Properties results = replay.replay(records, speed);
+            print(results);
+            if (compare != null)
+                compare(results, compare);
+            if (save != null) {
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(save), "UTF-8")) {
+                    results.store(out, "NameReplay " + args[0]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error : " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /* ******* FIELDS ******* */
+
+    // Requests in flight at once, each holds a reply port until it is answered
+    private static final int IN_FLIGHT = Integer.getInteger("replay.inFlight", 64);
+    private static final int REPLY_TIMEOUT = 10000;
+    private static final int SEND_TIME = 5;
+
+    // Metrics in the order they are printed and compared
+    private static final String[] METRICS = {
+            "requests", "answered", "busy", "lost", "seconds", "throughput",
+            "latencyMean", "latencyP50", "latencyP95", "latencyP99", "latencyMax", "hopsMean"
+    };
+
+    private final String entryIp;
+    private final int entryPort;
+
+    // A captured client request and when it arrived, in micros since the capture started
+    private static class Record {
+        final long micros;
+        final String message;
+        final int op;
+
+        Record(long micros, String message, int op) {
+            this.micros = micros;
+            this.message = message;
+            this.op = op;
+        }
+    }
+
+    /* ******* CONSTRUCTORS ******* */
+
+    public NameReplay(String entryIp, int entryPort) {
+        this.entryIp = entryIp;
+        this.entryPort = entryPort;
+        try {
+            ip = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            ip = "127.0.0.1";
+        }
+    }
+
+    /* ******* METHODS ******* */
+
+    private List<Record> read(String file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != CAPTURE_MAGIC)
+                throw new IOException(file + " is not a capture file");
+            int node = in.readInt();
+            long started = in.readLong();
+
+            long micros = 0;
+            int skipped = 0;
+            while (true) {
+                String message;
+                try {
+                    micros += in.readInt();
+                    message = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                // Forwarded copies carry a trace, the client's own request doesn't. Watches stream
+                // replies until cancelled, so they aren't requests we can time
+                int op = opcode(message);
+                if (!isClientCommand(op) || op == OP_WATCH || op == OP_UNWATCH || !isFromClient(message, op)) {
+                    skipped++;
+                    continue;
+                }
+                records.add(new Record(micros, message, op));
+            }
+
+            System.out.println("Read " + records.size() + " client request(s) captured on Name Server " + node
+                    + " at " + new Date(started) + ", skipped " + skipped + " other message(s)");
+        }
+        return records;
+    }
+
+    private static boolean isFromClient(String message, int op) {
+        String[] tokens = tokenize(message);
+        int at = replyIndex(op);
+        return at >= 0 && tokens.length >= at + 3 && tokens[at].equals(NO_TRACE);
+    }
+
+    // Sends every record at its captured offset scaled by speed, never more than IN_FLIGHT at once
+    private Properties replay(List<Record> records, double speed) throws IOException {
+        BlockingQueue<ServerSocket> ports = new ArrayBlockingQueue<>(IN_FLIGHT);
+        for (int i = 0; i < IN_FLIGHT; i++)
+            ports.add(replyPort());
+
+        ExecutorService pool = Executors.newFixedThreadPool(IN_FLIGHT);
+        long[] latencies = new long[records.size()];
+        AtomicLong answered = new AtomicLong();
+        AtomicLong busy = new AtomicLong();
+        AtomicLong lost = new AtomicLong();
+        AtomicLong hops = new AtomicLong();
+
+        // The pace starts with the first request, not with the capture
+        long first = records.isEmpty() ? 0 : records.get(0).micros;
+        long start = System.nanoTime();
+        for (int n = 0; n < records.size(); n++) {
+            Record record = records.get(n);
+            if (speed > 0) {
+                long due = start + (long) ((record.micros - first) * 1000 / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0)
+                    LockSupport.parkNanos(wait);
+            }
+
+            ServerSocket reply;
+            try {
+                reply = ports.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            final int slot = n;
+            pool.execute(() -> {
+                ServerSocket socket = reply;
+                long sent = System.nanoTime();
+                try {
+                    sendMessage(readdress(record, socket.getLocalPort()), entryIp, entryPort, SEND_TIME);
+                    String answer;
+                    try (Socket sock = socket.accept();
+                         DataInputStream in = new DataInputStream(sock.getInputStream())) {
+                        answer = in.readUTF();
+                    }
+                    latencies[slot] = System.nanoTime() - sent;
+                    answered.incrementAndGet();
+                    hops.addAndGet(visited(answer));
+                    if (answer.contains("Busy :"))
+                        busy.incrementAndGet();
+                } catch (IOException e) {
+                    // A late answer must not be taken for the next request's, so the port is replaced
+                    latencies[slot] = -1;
+                    lost.incrementAndGet();
+                    try {
+                        socket.close();
+                        socket = replyPort();
+                    } catch (IOException ignored) {
+                    }
+                }
+                ports.add(socket);
+            });
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(REPLY_TIMEOUT + 60000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ignored) {
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        for (ServerSocket socket : ports)
+            socket.close();
+
+        long[] timed = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+        Properties results = new Properties();
+        results.setProperty("requests", Integer.toString(records.size()));
+        results.setProperty("answered", Long.toString(answered.get()));
+        results.setProperty("busy", Long.toString(busy.get()));
+        results.setProperty("lost", Long.toString(lost.get()));
+        results.setProperty("seconds", format(seconds));
+        results.setProperty("throughput", format(answered.get() / seconds));
+        results.setProperty("latencyMean", format(timed.length == 0 ? 0 : Arrays.stream(timed).average().getAsDouble() / 1e6));
+        results.setProperty("latencyP50", format(percentile(timed, 0.50)));
+        results.setProperty("latencyP95", format(percentile(timed, 0.95)));
+        results.setProperty("latencyP99", format(percentile(timed, 0.99)));
+        results.setProperty("latencyMax", format(timed.length == 0 ? 0 : timed[timed.length - 1] / 1e6));
+        results.setProperty("hopsMean", format(answered.get() == 0 ? 0 : (double) hops.get() / answered.get()));
+        return results;
+    }
+
+    private static ServerSocket replyPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        socket.setSoTimeout(REPLY_TIMEOUT);
+        return socket;
+    }
+
+    // The captured request with its reply address pointed at us
+    private String readdress(Record record, int port) {
+        String[] tokens = tokenize(record.message);
+        int at = replyIndex(record.op);
+        tokens[at + 1] = ip;
+        tokens[at + 2] = Integer.toString(port);
+        return String.join(" ", tokens);
+    }
+
+    // Name Servers on the reply's trace, one line each
+    private static int visited(String answer) {
+        int count = 0;
+        for (int i = answer.indexOf("Name Server "); i != -1; i = answer.indexOf("Name Server ", i + 1)) {
+            if (answer.startsWith("\tChecked ", i - 9) || answer.startsWith("\tContacted ", i - 11))
+                count++;
+        }
+        return count;
+    }
+
+    // In ms
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1e6;
+    }
+
+    private static String format(double value) {
+        return String.format("%.3f", value);
+    }
+
+    private static void print(Properties results) {
+        for (String metric : METRICS)
+            System.out.println(String.format("%-12s %12s", metric, results.getProperty(metric)));
+    }
+
+    private static void compare(Properties results, String file) throws IOException {
+        Properties baseline = new Properties();
+        try (Reader in = new FileReader(file)) {
+            baseline.load(in);
+        }
+        System.out.println("\nAgainst " + file + ":");
+        for (String metric : METRICS) {
+            double now = Double.parseDouble(results.getProperty(metric, "0"));
+            double before = Double.parseDouble(baseline.getProperty(metric, "0"));
+            String change = before == 0 ? "" : String.format("%+.1f%%", (now - before) * 100 / before);
+            System.out.println(String.format("%-12s %12s -> %12s %9s", metric, format(before), format(now), change));
+        }
+    }
+}
@@ -1,24 +1,66 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class NameServer {
 
     /* ******* MAIN ******* */
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Error : Name Server requires config file argument");
+        if (args.length != 1 && !(args.length == 2 && args[1].equals(HEADLESS))) {
+            System.out.println("Error : Name Server requires config file argument, and optionally " + HEADLESS);
             System.exit(0);
         }
-        NameServer nameServer = new NameServer(args[0]);
+        NameServer nameServer = new NameServer(args[0], args.length == 2);
     }
 
     /* ******* FIELDS ******* */
@@ -27,7 +69,6 @@ public class NameServer {
 
     protected static final String REGISTER = "register";
     protected static final String EXIT = "exit";
-    protected static final String REMOVE_SELF = "remove_self";
     protected static final String LOOKUP = "lookup";
     protected static final String PRINT = "print";
     protected static final String DELETE = "delete";
@@ -35,12 +76,104 @@ public class NameServer {
     protected static final String SET_PREV = "set_prev";
     protected static final String SET_NEXT = "set_next";
     protected static final String TRANSFER = "transfer";
-    protected static final String TRANSFER_REQUEST = "transfer_request";
+    protected static final String HANDOFF_ACK = "handoff_ack";
+    protected static final String RING_WALK = "ring_walk";
+    protected static final String RING_VIEW = "ring_view";
+    protected static final String BULK_INSERT = "bulk_insert";
+    protected static final String SHARED_LOOKUP = "shared_lookup";
+    protected static final String LOOKUP_RESULT = "lookup_result";
+    protected static final String PUT = "put";
+    protected static final String PUT_IF_ABSENT = "putifabsent";
+    protected static final String REPLACE = "replace";
+    protected static final String CAS = "cas";
+    protected static final String LOAD = "load";
+    protected static final String SHED = "shed";
+    protected static final String MOVE_RANGE = "move_range";
+    protected static final String SET_END = "set_end";
+    protected static final String GOSSIP = "gossip";
+    protected static final String GOSSIP_ACK = "gossip_ack";
+    protected static final String PING_REQ = "ping_req";
+    protected static final String PING_ACK = "ping_ack";
+    protected static final String ADMIN = "admin";
+    protected static final String ADMIN_REPLY = "admin_reply";
+    protected static final String REVERSE_LOOKUP = "reverse_lookup";
+    protected static final String INDEX_UPDATE = "index_update";
+    protected static final String SUMMARY = "summary";
+    protected static final String BATCH = "batch";
+    protected static final String WATCH = "watch";
+    protected static final String UNWATCH = "unwatch";
+    protected static final String WATCH_EVENT = "watch_event";
+    protected static final String WATCH_MOVED = "watch_moved";
+    protected static final String WATCH_DROPPED = "watch_dropped";
+    protected static final String TRANSFER_RESEND = "transfer_resend";
+    protected static final String TRANSFER_REPAIR = "transfer_repair";
+    protected static final String TRANSFER_ACK = "transfer_ack";
+    protected static final String DIRECT = "direct";
+    protected static final String VIEW = "view";
+    protected static final String RING_UPDATE = "ring_update";
+    protected static final String WRONG_OWNER = "wrong_owner";
+
+    // Command line flag that starts a node without its console
+    protected static final String HEADLESS = "--headless";
+
+    // Trace of a request that entered the ring from an external client
+    protected static final String NO_TRACE = "-";
+
+    // Handlers dispatch on these, each is the index of its command in COMMANDS
+    protected static final int OP_REGISTER = 0;
+    protected static final int OP_EXIT = 1;
+    protected static final int OP_LOOKUP = 2;
+    protected static final int OP_PRINT = 3;
+    protected static final int OP_DELETE = 4;
+    protected static final int OP_INSERT = 5;
+    protected static final int OP_SET_PREV = 6;
+    protected static final int OP_SET_NEXT = 7;
+    protected static final int OP_TRANSFER = 8;
+    protected static final int OP_HANDOFF_ACK = 9;
+    protected static final int OP_RING_WALK = 10;
+    protected static final int OP_RING_VIEW = 11;
+    protected static final int OP_BULK_INSERT = 12;
+    protected static final int OP_SHARED_LOOKUP = 13;
+    protected static final int OP_LOOKUP_RESULT = 14;
+    protected static final int OP_PUT = 15;
+    protected static final int OP_PUT_IF_ABSENT = 16;
+    protected static final int OP_REPLACE = 17;
+    protected static final int OP_CAS = 18;
+    protected static final int OP_LOAD = 19;
+    protected static final int OP_SHED = 20;
+    protected static final int OP_MOVE_RANGE = 21;
+    protected static final int OP_SET_END = 22;
+    protected static final int OP_GOSSIP = 23;
+    protected static final int OP_GOSSIP_ACK = 24;
+    protected static final int OP_ADMIN = 25;
+    protected static final int OP_REVERSE_LOOKUP = 26;
+    protected static final int OP_INDEX_UPDATE = 27;
+    protected static final int OP_SUMMARY = 28;
+    protected static final int OP_BATCH = 29;
+    protected static final int OP_WATCH = 30;
+    protected static final int OP_UNWATCH = 31;
+    protected static final int OP_TRANSFER_RESEND = 32;
+    protected static final int OP_TRANSFER_REPAIR = 33;
+    protected static final int OP_TRANSFER_ACK = 34;
+    protected static final int OP_DIRECT = 35;
+    protected static final int OP_VIEW = 36;
+    protected static final int OP_PING_REQ = 37;
+    protected static final int OP_PING_ACK = 38;
+
+    protected static final String[] COMMANDS = {
+            REGISTER, EXIT, LOOKUP, PRINT, DELETE, INSERT, SET_PREV, SET_NEXT, TRANSFER, HANDOFF_ACK,
+            RING_WALK, RING_VIEW, BULK_INSERT, SHARED_LOOKUP, LOOKUP_RESULT, PUT, PUT_IF_ABSENT, REPLACE, CAS,
+            LOAD, SHED, MOVE_RANGE, SET_END, GOSSIP, GOSSIP_ACK, ADMIN, REVERSE_LOOKUP, INDEX_UPDATE,
+            SUMMARY, BATCH, WATCH, UNWATCH, TRANSFER_RESEND, TRANSFER_REPAIR, TRANSFER_ACK,
+            DIRECT, VIEW, PING_REQ, PING_ACK
+    };
 
     protected NameServerStub prevServer;
     protected NameServerStub nextServer;
 
     protected int id;
+    // Start of the owned range, begins at id but moves when load is rebalanced
+    protected int startIndex;
     protected int endIndex;
     protected String ip;
     protected int listenPort;
@@ -50,17 +183,62 @@ public class NameServer {
 
     protected String prompt;
 
+    // In the ring, set by join and cleared by leave
+    protected volatile boolean registered;
+
+    // Set while handing our range to the predecessor on exit, departed once it has acknowledged
+    protected volatile boolean draining;
+    protected volatile boolean departed;
+    protected final Object drainMutex = new Object();
+    private int writesInFlight;
+    private boolean handoffAcked;
+    // Set when drain gave up waiting, a late acknowledgement then completes the exit itself
+    private boolean drainPending;
+    private String handoffIp;
+    private int handoffPort;
+    // Writes that arrived while draining, held until the predecessor owns the range. Guarded by drainMutex
+    private final List<String> heldWrites = new ArrayList<>();
+
     // Probably not the final implementation, just for basic use
     protected String[] map = new String[1024];
+    // Bumped on every write to the key, a stored value always has version >= 1
+    protected long[] versions = new long[1024];
+    // Absolute expiry time in ms for keys inserted with a TTL, 0 if the key never expires
+    protected long[] expiries = new long[1024];
+    // Min-heap of {expiry, key} for the reaper, stale entries are skipped when popped
+    protected final PriorityQueue<long[]> expiryQueue = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+    // Reverse lookup index, value -> key -> version, kept by the owner of the value's slot. Guarded by mapMutex
+    protected final Map<String, TreeMap<Integer, Long>> reverseIndex = new HashMap<>();
+    // Exponentially decayed operation count per key, drives rebalancing
+    protected long[] hits = new long[1024];
+
+    // Lookups forwarded from here that identical lookups can piggyback on, keyed by key
+    protected final Map<Integer, Flight> flights = new HashMap<>();
+    protected final Object flightMutex = new Object();
+    protected long[] lastForwarded = new long[1024];
     protected final Object mapMutex = new Object();
     protected final Object nextMutex = new Object();
     protected final Object prevMutex = new Object();
 
+    // Gossiped view of the ring, keyed by Name Server id
+    protected final Map<Integer, Member> members = new HashMap<>();
+    protected final Object membersMutex = new Object();
+    protected long incarnation;
+    // Version of our entry in the ring view, moves with our range and every incarnation. Guarded by membersMutex
+    protected long rangeVersion;
+    private int publishedStart = -1;
+    private int publishedEnd = -1;
+
     /* ******* CONSTRUCTORS ******* */
 
     public NameServer() {}
 
     public NameServer(String configFile) {
+        this(configFile, false);
+    }
+
+    // Headless nodes have no console and are driven through ADMIN messages, see NameAdmin
+    public NameServer(String configFile, boolean headless) {
         parseConfigFile(configFile);
         //
         System.out.println("ID: " + id);
@@ -72,13 +250,42 @@ public class NameServer {
 
         nextServer = new NameServerStub(ip, listenPort, id);
         prevServer = new NameServerStub(ip, listenPort, id);
+        startIndex = id;
+        endIndex = -1;
 
-        UserThread user = new UserThread();
-        user.start();
+        if (!headless) {
+            UserThread user = new UserThread();
+            user.start();
+        }
+
+        // Set before the listener starts so the log covers everything this node sees
+        if (CAPTURE_FILE != null)
+            startCapture(CAPTURE_FILE);
 
         ListenerThread listenThread = new ListenerThread();
         listenThread.start();
 
+        GossipThread gossipThread = new GossipThread();
+        gossipThread.start();
+
+        ReaperThread reaperThread = new ReaperThread();
+        reaperThread.start();
+
+        FlightReaperThread flightReaperThread = new FlightReaperThread();
+        flightReaperThread.start();
+
+        IndexThread indexThread = new IndexThread();
+        indexThread.start();
+
+        WatchThread watchThread = new WatchThread();
+        watchThread.start();
+
+        SummaryThread summaryThread = new SummaryThread();
+        summaryThread.start();
+
+        RebalanceThread rebalanceThread = new RebalanceThread();
+        rebalanceThread.start();
+
     }
 
     /* ******* METHODS ******* */
@@ -145,6 +352,7 @@ public class NameServer {
     protected void printMap() {
         for (int i = 0; i < 1024; i++) {
             synchronized (mapMutex) {
+                expire(i);
                 String value = map[i];
                 if (value == null)
                     continue;
@@ -153,9 +361,235 @@ public class NameServer {
         }
     }
 
-    private class UserThread extends Thread implements Runnable {
+    /* ******* CLIENT OPERATIONS ******* */
+
+    // Entry point for client operations on this node, replies are sent back here
+
+    protected void lookupKey(int key) throws IOException {
+
+        if (key < 0 || key >= HASH_SIZE) {
+            System.out.println("Error : Invalid key");
+            return;
+        }
+
+        if (isInRange(key)) {
+            String value;
+            long version;
+            synchronized (mapMutex) {
+                expire(key);
+                hits[key]++;
+                value = map[key];
+                version = versions[key];
+            }
+            if (value == null) {
+                System.out.print(parseTrace(Integer.toString(id), true));
+                System.out.println("Key not found.");
+            } else {
+                System.out.print(parseTrace(Integer.toString(id), true));
+                System.out.println("Success! Found \"" + value + "\" (version " + version + ") on Name Server " + id);
+            }
+        } else if (summaryMiss(key) >= 0) {
+            System.out.print(parseTrace(Integer.toString(id), true));
+            System.out.println("Key not found.");
+        } else {
+            String trace = Integer.toString(id);
+            String message = LOOKUP + " " + key + " " + trace + " " + ip + " " + listenPort;
+            forward(message, key);
+        }
+    }
+
+    protected void insertKey(int key, String value, long ttl) throws IOException {
+
+        if (key < 0 || key >= HASH_SIZE) {
+            System.out.println("Error : Invalid key");
+            return;
+        }
+
+        if (isInRange(key)) {
+            String cur;
+            synchronized (mapMutex) {
+                expire(key);
+                hits[key]++;
+                cur = map[key];
+                if (cur == null) {
+                    map[key] = value;
+                    versions[key]++;
+                    setExpiry(key, ttl);
+                    keyChanged(key, null);
+                }
+            }
+            System.out.print(parseTrace(Integer.toString(id), true));
+            if (cur == null) {
+                awaitSummary();
+                System.out.println("Successfully added (" + key + ", " + value + ") to Name Server " + id);
+            } else {
+                System.out.println("Error : Value \"" + cur + "\" already associated with key " + key);
+            }
+        } else {
+            sawWrite(key);
+            String trace = Integer.toString(id);
+            String message = INSERT + " " + key + " " + value + " " + trace + " " + ip + " " + listenPort + " " + ttl;
+            forward(message, key);
+        }
+    }
+
+    protected void deleteKey(int key) throws IOException {
+
+        if (key < 0 || key >= HASH_SIZE) {
+            System.out.println("Error : Invalid key");
+            return;
+        }
+
+        if (isInRange(key)) {
+            synchronized (mapMutex) {
+                expire(key);
+                hits[key]++;
+                String value = map[key];
+                if (value == null) {
+                    System.out.print(parseTrace(Integer.toString(id), true));
+                    System.out.println("Key not found.");
+                } else {
+                    map[key] = null;
+                    versions[key]++;
+                    expiries[key] = 0;
+                    keyChanged(key, value);
+                    System.out.print(parseTrace(Integer.toString(id), true));
+                    System.out.println("Successful deletion");
+                }
+            }
+        } else {
+            String trace = Integer.toString(id);
+            String message = DELETE + " " + key + " " + trace + " " + ip + " " + listenPort;
+            forward(message, key);
+        }
+    }
+
+    // Asks the owner of the value's slot which keys hold it
+    protected void reverseLookup(String value) throws IOException {
+        int slot = valueSlot(value);
+        String keys = null;
+        synchronized (mapMutex) {
+            if (isInRange(slot))
+                keys = describeKeys(value);
+        }
+
+        if (keys != null) {
+            System.out.print(parseTrace(Integer.toString(id), true));
+            System.out.println(keys);
+        } else {
+            String trace = Integer.toString(id);
+            String message = REVERSE_LOOKUP + " " + slot + " " + value + " " + trace + " " + ip + " " + listenPort;
+            forward(message, slot);
+        }
+    }
+
+    // put, putifabsent, replace and cas are all decided by the owner in a single pass
+    protected void writeCommand(String[] tokens) throws IOException {
+        String op = tokens[0].toLowerCase();
+        boolean conditional = op.equals(REPLACE) || op.equals(CAS);
+
+        if (!conditional && tokens.length != 3) {
+            System.out.println("Error : " + op + " requires two arguments [key] and [value].");
+            return;
+        }
+        if (op.equals(REPLACE) && tokens.length != 4) {
+            System.out.println("Error : replace requires three arguments [key], [expected value] and [new value].");
+            return;
+        }
+        if (op.equals(CAS) && tokens.length != 4) {
+            System.out.println("Error : cas requires three arguments [key], [expected version] and [new value].");
+            return;
+        }
+
+        int key;
+        try {
+            key = Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Error : " + tokens[1] + " is not a number.");
+            return;
+        }
+        if (op.equals(CAS)) {
+            try {
+                Long.parseLong(tokens[2]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : " + tokens[2] + " is not a version number.");
+                return;
+            }
+        }
+
+        String expected = conditional ? tokens[2] : NO_TRACE;
+        String value = conditional ? tokens[3] : tokens[2];
+        writeKey(op, key, expected, value);
+    }
+
+    protected void writeKey(String op, int key, String expected, String value) throws IOException {
+
+        if (key < 0 || key >= HASH_SIZE) {
+            System.out.println("Error : Invalid key");
+            return;
+        }
+
+        if (isInRange(key)) {
+            String reply = applyWrite(op, key, expected, value);
+            awaitSummary();
+            System.out.print(parseTrace(Integer.toString(id), true));
+            System.out.println(reply);
+        } else {
+            sawWrite(key);
+            String trace = Integer.toString(id);
+            String message = op + " " + key + " " + expected + " " + value + " " + trace + " " + ip + " " + listenPort;
+            forward(message, key);
+        }
+    }
+
+    // Checks the condition and writes under one lock, returns the reply for the client
+    protected String applyWrite(String op, int key, String expected, String value) {
+        synchronized (mapMutex) {
+            expire(key);
+            hits[key]++;
+            String cur = map[key];
+            long version = versions[key];
+
+            boolean ok;
+            switch (op) {
+                case PUT:
+                    ok = true;
+                    break;
+                case PUT_IF_ABSENT:
+                    ok = cur == null;
+                    break;
+                case REPLACE:
+                    ok = cur != null && cur.equals(expected);
+                    break;
+                case CAS:
+                    // Compared as numbers, so 01 matches version 1
+                    try {
+                        ok = Long.parseLong(expected) == version;
+                    } catch (NumberFormatException e) {
+                        return "Error : " + expected + " is not a version number.";
+                    }
+                    break;
+                default:
+                    return "Error : Unknown write " + op;
+            }
+
+            if (!ok) {
+                if (cur == null)
+                    return "Error : Condition failed, key " + key + " is empty (version " + version + ")";
+                return "Error : Condition failed, key " + key + " holds \"" + cur + "\" (version " + version + ")";
+            }
 
-        private boolean registered;
+            // A plain write replaces the lease along with the value
+            map[key] = value;
+            versions[key] = version + 1;
+            expiries[key] = 0;
+            keyChanged(key, cur);
+            return "Successfully stored (" + key + ", " + value + ") at version " + (version + 1)
+                    + " on Name Server " + id;
+        }
+    }
+
+    private class UserThread extends Thread implements Runnable {
 
         UserThread() {}
 
@@ -180,10 +614,70 @@ public class NameServer {
 
                         switch (command) {
                             case "enter":
-                                enter();
+                                if (tokens.length == 3) {
+                                    try {
+                                        joinRing(tokens[1], Integer.parseInt(tokens[2]));
+                                    } catch (NumberFormatException e) {
+                                        System.out.println("Error : " + tokens[2] + " is not a number.");
+                                    }
+                                } else {
+                                    joinRing(bootIp, bootPort);
+                                }
+                                break;
+                            case "members":
+                                printMembers();
+                                break;
+                            case "capture":
+                                captureCommand(tokens);
                                 break;
                             case "exit":
-                                exit();
+                                leaveRing();
+                                break;
+                            case "lookup":
+                            case "delete":
+                                if (!registered)
+                                    System.out.println("Not in system.");
+                                else if (tokens.length != 2)
+                                    System.out.println("Error : " + command + " requires a single argument [key].");
+                                else
+                                    try {
+                                        if (command.equals("lookup"))
+                                            lookupKey(Integer.parseInt(tokens[1]));
+                                        else
+                                            deleteKey(Integer.parseInt(tokens[1]));
+                                    } catch (NumberFormatException e) {
+                                        System.out.println("Error : " + tokens[1] + " is not a number.");
+                                    }
+                                break;
+                            case "reverse":
+                                if (!registered)
+                                    System.out.println("Not in system.");
+                                else if (tokens.length != 2)
+                                    System.out.println("Error : reverse requires a single argument [value].");
+                                else
+                                    reverseLookup(tokens[1]);
+                                break;
+                            case "insert":
+                                if (!registered)
+                                    System.out.println("Not in system.");
+                                else if (tokens.length != 3 && tokens.length != 4)
+                                    System.out.println("Error : insert requires [key] and [value], and an optional [ttl] in seconds.");
+                                else
+                                    try {
+                                        long ttl = tokens.length == 4 ? Long.parseLong(tokens[3]) : 0;
+                                        insertKey(Integer.parseInt(tokens[1]), tokens[2], ttl);
+                                    } catch (NumberFormatException e) {
+                                        System.out.println("Error : Key and ttl must be numbers.");
+                                    }
+                                break;
+                            case PUT:
+                            case PUT_IF_ABSENT:
+                            case REPLACE:
+                            case CAS:
+                                if (!registered)
+                                    System.out.println("Not in system.");
+                                else
+                                    writeCommand(tokens);
                                 break;
                             case "status":
                                 if (!registered) {
@@ -191,7 +685,7 @@ public class NameServer {
                                     break;
                                 }
                                 printMap();
-                                System.out.println("\nCovering the range " + id + " to " + endIndex);
+                                System.out.println("\nCovering the range " + startIndex + " to " + endIndex);
                                 if (prevServer != null)
                                     System.out.println("Previous Name Server: " + prevServer.getId());
                                 else
@@ -203,6 +697,13 @@ public class NameServer {
                                 else
                                     System.out.println("next: null");
 
+                                System.out.println("Admitted " + admitted.get() + " client request(s), turned away "
+                                        + rejected.get() + " as busy");
+                                System.out.println("Sent " + framesSent.get() + " frame(s), " + charsSent.get() + " characters");
+                                System.out.println("Answered " + summaryMisses.get() + " lookup(s) for missing keys from summaries");
+                                System.out.println("Coalesced " + coalesced.get() + " forward(s) into " + batches.get() + " frame(s)");
+                                System.out.println("Captured " + captured.get() + " message(s), dropped " + captureDropped.get());
+
                                 break;
                             case "":
                                 break;
@@ -217,34 +718,46 @@ public class NameServer {
                 }
             }
         }
+    }
 
-        private void enter() throws IOException {
-            if (registered) {
-                System.out.println("Error : Already in system");
-                return;
-            }
-            registered = true;
+    // Any live Name Server can act as the seed, REGISTER is routed to the owner from there
+    protected boolean joinRing(String seedIp, int seedPort) throws IOException {
+        if (registered) {
+            System.out.println("Error : Already in system");
+            return false;
+        }
+        registered = true;
+        startIndex = id;
+        endIndex = -1;
+        draining = false;
+        departed = false;
 
-            String trace = Integer.toString(id);
-            String message = REGISTER + " " + ip + " " + listenPort + " " + id + " " + trace;
+        joinMembership();
 
-            // System.out.println("Sending : " + message);
-            sendMessage(message, bootIp, bootPort);
-        }
+        String trace = Integer.toString(id);
+        String message = REGISTER + " " + ip + " " + listenPort + " " + id + " " + trace;
 
-        private void exit() throws IOException {
-            if (!registered) {
-                System.out.println("Error : Must be in the system to exit.");
-                return;
-            }
-            registered = false;
+        // System.out.println("Sending : " + message);
+        sendMessage(message, seedIp, seedPort);
+        return true;
+    }
+
+    protected boolean leaveRing() throws IOException {
+        if (!registered) {
+            System.out.println("Error : Must be in the system to exit.");
+            return false;
+        }
 
-            String message = EXIT + " " + id;
-            // System.out.println("Sending : " + message);
-            sendMessage(message, bootIp, bootPort);
-            System.out.println("Successful exit");
-            System.out.println("Key range [" + id + ", " + endIndex + "] handed over to Name Server " + getPrevId());
+        // Our predecessor is the one that takes over, no need to go through the bootstrap
+        if (!drain()) {
+            if (draining)
+                System.out.println("Error : Name Server " + getPrevId() + " has not confirmed the takeover yet, "
+                        + "still draining. The exit completes once it does.");
+            else
+                System.out.println("Error : Name Server " + getPrevId() + " did not take over, still in system.");
+            return false;
         }
+        return true;
     }
 
     protected void setNext(String targetIp, int targetPort,
@@ -266,7 +779,8 @@ public class NameServer {
 
         ListenerThread() {
             try {
-                listenerSocket = new ServerSocket(listenPort);
+                // Hot keys arrive in bursts, keep them queued rather than refused
+                listenerSocket = new ServerSocket(listenPort, LISTEN_BACKLOG);
             } catch (IOException e) {
                 e.printStackTrace();
                 running = false;
@@ -276,78 +790,191 @@ public class NameServer {
         @Override
         public void run() {
 
+            for (int i = 0; i < WORKERS; i++) {
+                WorkerThread worker = new WorkerThread();
+                worker.setDaemon(true);
+                worker.start();
+            }
+            BusyThread busy = new BusyThread();
+            busy.setDaemon(true);
+            busy.start();
+
+            // Every frame is read into the same buffer, only the message string itself is allocated
+            byte[] frame = new byte[MAX_FRAME + 2];
+
             while (running) {
 
                 try {
-                    Socket nameServerSock = listenerSocket.accept();
-                    DataInputStream in = new DataInputStream(nameServerSock.getInputStream());
+                    String message;
+                    try (Socket nameServerSock = listenerSocket.accept()) {
+                        // A peer that connects and then stalls must not hold up the listener
+                        nameServerSock.setSoTimeout(READ_TIMEOUT);
+                        message = readFrame(nameServerSock.getInputStream(), frame);
+                    }
+                    deliver(message);
+
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
 
-                    String message = in.readUTF();
+        private void deliver(String message) {
+            int op = opcode(message);
+            if (op < 0)
+                return;
 
-                    nameServerSock.close();
-                    in.close();
+            // System.out.println("Received: " + message);
+
+            // Forwards a neighbour coalesced, one per line, each is admitted on its own
+            if (op == OP_BATCH) {
+                int from = BATCH.length() + 1;
+                while (from < message.length()) {
+                    int to = message.indexOf('\n', from);
+                    if (to == -1)
+                        to = message.length();
+                    deliver(message.substring(from, to));
+                    from = to + 1;
+                }
+                return;
+            }
 
-                    String[] tokens = message.split(" ");
+            capture(message);
 
-                    if (tokens.length == 0)
-                        continue;
+            // A ring view client's request sent straight to the node it worked out as the owner. A stale
+            // guess still gets forwarded as usual, and the client is sent our view to correct the next one
+            if (op == OP_DIRECT) {
+                String request = message.substring(DIRECT.length() + 1);
+                if (!isClientCommand(opcode(request)))
+                    return;
+                if (!ownsRequest(request))
+                    new Thread(new Handler().reset(message, op)).start();
+                deliver(request);
+                return;
+            }
 
-                    // System.out.println("Received: " + message);
-                    HandlerThread handlerThread = new HandlerThread(message, tokens);
-                    handlerThread.start();
+            if (op == OP_SUMMARY) {
+                storeSummary(tokenize(message));
+                return;
+            }
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // Ring maintenance never waits behind client traffic
+            if (replyIndex(op) < 0) {
+                new Thread(new Handler().reset(message, op)).start();
+                return;
             }
+
+            if (admit(op, message) && clientQueue.offer(message))
+                admitted.incrementAndGet();
+            else
+                reject(op, message);
         }
     }
 
-    protected class HandlerThread extends Thread implements Runnable {
-
-        private boolean error = false;
+    // Workers keep one Handler each and reset it for every request they take
+    protected class Handler implements Runnable {
 
         private String message;
         private String[] args;
 
+        private int op;
         private String command;
-        HandlerThread(String message, String[] args) {
-            command = args[0];
+
+        Handler reset(String message, int op) {
             this.message = message;
-            this.args = args;
+            this.op = op;
+            command = COMMANDS[op];
+            args = tokenize(message);
+            return this;
         }
 
         @Override
         public void run() {
 
-            if (error)
-                return;
-
             try {
-                switch (command) {
-                    case REGISTER:
-                        register();
+                // Once our range is handed over, stragglers go to the new owner
+                if (departed && (isClientCommand(op) || op == OP_INDEX_UPDATE)) {
+                    sendMessage(message, handoffIp, handoffPort);
+                    return;
+                }
+
+                switch (op) {
+                    case OP_REGISTER:
+                        if (draining)
+                            redirect(message, op);
+                        else
+                            register();
                         break;
-                    case EXIT:
+                    case OP_EXIT:
                         // System.out.println("EXIT CALLED");
                         exitSystem();
                         break;
-                    case REMOVE_SELF:
-                        removeSelf();
+                    case OP_HANDOFF_ACK:
+                        boolean late;
+                        synchronized (drainMutex) {
+                            handoffAcked = true;
+                            late = drainPending;
+                            drainPending = false;
+                            drainMutex.notifyAll();
+                        }
+                        if (late)
+                            depart();
+                        break;
+                    case OP_TRANSFER_RESEND:
+                        resendSegments();
+                        break;
+                    case OP_TRANSFER_REPAIR:
+                        receiveRepair();
                         break;
-                    case LOOKUP:
+                    case OP_TRANSFER_ACK:
+                        transferAck();
+                        break;
+                    case OP_LOOKUP:
+                    case OP_SHARED_LOOKUP:
                         lookup();
                         break;
-                    case PRINT:
-                        print();
+                    case OP_LOOKUP_RESULT:
+                        lookupResult();
                         break;
-                    case INSERT:
-                        insert();
+                    case OP_REVERSE_LOOKUP:
+                        reverseLookup();
                         break;
-                    case DELETE:
-                        delete();
+                    case OP_PRINT:
+                        print();
+                        break;
+                    case OP_INSERT:
+                    case OP_DELETE:
+                    case OP_PUT:
+                    case OP_PUT_IF_ABSENT:
+                    case OP_REPLACE:
+                    case OP_CAS:
+                    case OP_BULK_INSERT:
+                    case OP_INDEX_UPDATE:
+                    case OP_WATCH:
+                    case OP_UNWATCH:
+                        // Writes are redirected while draining, reads keep being served from our copy
+                        if (!beginWrite()) {
+                            redirect(message, op);
+                            break;
+                        }
+                        try {
+                            if (op == OP_INSERT)
+                                insert();
+                            else if (op == OP_DELETE)
+                                delete();
+                            else if (op == OP_BULK_INSERT)
+                                bulkInsert();
+                            else if (op == OP_INDEX_UPDATE)
+                                indexUpdate();
+                            else if (op == OP_WATCH || op == OP_UNWATCH)
+                                watch();
+                            else
+                                write();
+                        } finally {
+                            endWrite();
+                        }
                         break;
-                    case SET_NEXT:
+                    case OP_SET_NEXT:
                         if (args.length != 4) {
                             System.out.println("Error : Set Next needs 3 args");
                             break;
@@ -357,9 +984,10 @@ public class NameServer {
                             nextServer.setPort(Integer.parseInt(args[2]));
                             nextServer.setId(Integer.parseInt(args[3]));
                         }
+                        learnMember(Integer.parseInt(args[3]), args[1], Integer.parseInt(args[2]));
                         break;
 
-                    case SET_PREV:
+                    case OP_SET_PREV:
                         if (args.length != 4) {
                             System.out.println("Error : Set Prev needs 3 args");
                             break;
@@ -369,14 +997,53 @@ public class NameServer {
                             prevServer.setPort(Integer.parseInt(args[2]));
                             prevServer.setId(Integer.parseInt(args[3]));
                         }
+                        learnMember(Integer.parseInt(args[3]), args[1], Integer.parseInt(args[2]));
                         break;
 
 
-                    case TRANSFER:
+                    case OP_TRANSFER:
                         receiveTransfer();
                         break;
-                    case TRANSFER_REQUEST:
-                        transferRequest();
+                    case OP_RING_WALK:
+                        ringWalk();
+                        break;
+                    case OP_GOSSIP:
+                    case OP_GOSSIP_ACK:
+                        gossip();
+                        break;
+                    case OP_PING_REQ:
+                        pingReq();
+                        break;
+                    case OP_PING_ACK:
+                        pingAck();
+                        break;
+                    case OP_LOAD:
+                        load();
+                        break;
+                    case OP_SHED:
+                        shed();
+                        break;
+                    case OP_MOVE_RANGE:
+                        moveRange();
+                        break;
+                    case OP_ADMIN:
+                        admin();
+                        break;
+                    case OP_DIRECT:
+                        wrongOwner();
+                        break;
+                    case OP_VIEW:
+                        view();
+                        break;
+                    case OP_SET_END:
+                        if (args.length != 2) {
+                            System.out.println("Error : Set End needs 1 arg");
+                            break;
+                        }
+                        synchronized (mapMutex) {
+                            endIndex = Integer.parseInt(args[1]);
+                        }
+                        break;
 
 
                     default:
@@ -384,10 +1051,130 @@ public class NameServer {
 
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                // A client request that could not be passed on fails now instead of timing out at the client
+                if (replyIndex(op) >= 0)
+                    failRequest(e);
+                else
+                    e.printStackTrace();
+            }
+
+
+        }
+
+        // Forwards on in the direction the request was already travelling
+        private void forward(CharSequence message, int key) throws IOException {
+            NameServer.this.forward(message, key, previousHop());
+        }
+
+        // The last Name Server on the trace other than us, -1 if the request entered the ring here
+        private int previousHop() {
+            int at = replyIndex(op);
+            if (at < 0 || args.length <= at)
+                return -1;
+            String trace = args[at];
+            int end = trace.length();
+            while (end > 0) {
+                int start = trace.lastIndexOf(',', end - 1) + 1;
+                int hop;
+                try {
+                    hop = Integer.parseInt(trace.substring(start, end));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+                if (hop != id)
+                    return hop;
+                end = start - 1;
+            }
+            return -1;
+        }
+
+        private void failRequest(IOException cause) {
+            int at = replyIndex(op);
+            if (at < 0 || args.length < at + 3)
+                return;
+            try {
+                String trace = traceContains(args[at], id) ? args[at] : appendTrace(args[at]);
+                Waiter w = new Waiter(trace, args[at + 1], Integer.parseInt(args[at + 2]), op == OP_SHARED_LOOKUP);
+                System.out.println("Error : " + command + " failed, " + cause.getMessage());
+                trySend(busyMessage(w, Integer.parseInt(args[1]), trace, cause.getMessage()), w.ip, w.port);
+            } catch (NumberFormatException e) {
+                // Malformed requests were already reported by their handler
+            }
+        }
+
+        // admin <op> <reply ip> <reply port> [args], answered with a single line of JSON
+        private void admin() throws IOException {
+            if (args.length < 4) {
+                System.out.println("Error : Admin expects an operation and a reply address");
+                return;
+            }
+
+            String replyIp = args[2];
+            int replyPort;
+            try {
+                replyPort = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed admin command.");
+                return;
             }
 
+            StringBuilder reply = new StringBuilder();
+            boolean shutdown = false;
+            try {
+                switch (args[1]) {
+                    case "join": {
+                        String seedIp = args.length == 6 ? args[4] : bootIp;
+                        int seedPort = args.length == 6 ? Integer.parseInt(args[5]) : bootPort;
+                        if (!joinRing(seedIp, seedPort)) {
+                            adminError(reply, "already in the system");
+                        } else if (!awaitRange()) {
+                            adminError(reply, "no range received within " + JOIN_TIMEOUT / 1000 + " s");
+                        } else {
+                            statusJson(reply);
+                        }
+                        break;
+                    }
+                    case "leave":
+                    case "drain":
+                        if (!leaveRing()) {
+                            adminError(reply, registered ? "could not hand over the range" : "not in the system");
+                        } else {
+                            statusJson(reply);
+                            // A drained node is done, its supervisor can let it go
+                            shutdown = args[1].equals("drain");
+                        }
+                        break;
+                    case "status":
+                        statusJson(reply);
+                        break;
+                    case "capture":
+                        if (args.length != 5) {
+                            adminError(reply, "capture expects a file or off");
+                        } else if (args[4].equals("off") ? !stopCapture() : !startCapture(args[4])) {
+                            adminError(reply, args[4].equals("off") ? "not capturing" : "could not start capturing to " + args[4]);
+                        } else {
+                            statusJson(reply);
+                        }
+                        break;
+                    case "range": {
+                        int from = args.length >= 5 ? Integer.parseInt(args[4]) : 0;
+                        int to = args.length >= 6 ? Integer.parseInt(args[5]) : HASH_SIZE - 1;
+                        rangeJson(reply, from, to);
+                        break;
+                    }
+                    default:
+                        adminError(reply, "unknown operation " + args[1]);
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                reply.setLength(0);
+                adminError(reply, "malformed arguments");
+            }
 
+            // Key listings can outgrow a frame, the admin tool decodes compressed replies
+            sendMessage(ADMIN_REPLY + " " + encodeData(reply.toString()), replyIp, replyPort);
+            if (shutdown)
+                System.exit(0);
         }
 
         private void register() throws IOException {
@@ -405,8 +1192,7 @@ public class NameServer {
 
             // System.out.println(" *** Registering Name Server " + nsId + " ***");
 
-            // TODO: Check if ID is between this.id and nextServer.Id
-            if (nsId == id) {
+            if (nsId == id || nsId == startIndex) {
                 System.out.println("Error : id already exists!");
                 return;
             }
@@ -416,441 +1202,4236 @@ public class NameServer {
 
                 // System.out.println("Going to register " + nsId + " between " + id + " and " + endIndex);
 
-                // Transfer data from nsId to endIndex
-                // System.out.println("Transferring data to Name Server " + nsId );
-                StringBuilder message = new StringBuilder(TRANSFER + " " + endIndex + " ");
-
-                for (int i = nsId; i != endIndex + 1; i++) {
-
-                    if (i == HASH_SIZE) {
-                        i = 0;
-                        continue;
-                    }
-
-                    // Otherwise do stuff
-                    synchronized (mapMutex) {
-                        if (map[i] != null) {
-                            message.append(i).append(",").append(map[i]);
-                            if (i != endIndex) {
-                                message.append(";");
-                            }
-                        }
-                        map[i] = null;
-                    }
-                }
-                sendMessage(message.toString(), nsIp, nsPort);
-
+                String nextIp = getNextIp();
+                int nextPort = getNextPort();
+                int nextId = getNextId();
+                int oldEnd = endIndex;
 
                 String nsMsg = PRINT + " " + "Successful entry\n";
-                nsMsg += "Managing keys on the range ["+nsId + ", " + endIndex + "]\n";
+                nsMsg += "Managing keys on the range ["+nsId + ", " + oldEnd + "]\n";
                 nsMsg += "Preceded by Name Server " + id + "\n";
-                nsMsg += "Succeeded by Name Server " + getNextId() + "\n";
+                nsMsg += "Succeeded by Name Server " + nextId + "\n";
                 nsMsg += "Enter Sequence: \n";
                 nsMsg += parseTrace(args[4], false);
 
-                        // Update Name Server next and prev
-                setNext(nsIp, nsPort, getNextIp(), getNextPort(), getNextId());
+                // Update Name Server next and prev
+                setNext(nsIp, nsPort, nextIp, nextPort, nextId);
                 setPrev(nsIp, nsPort, ip, listenPort, id);
 
-                // Update next server's previous server
-                setPrev(getNextIp(), getNextPort(), nsIp, nsPort, nsId);
+                // Drop the range and point at the new node in one step, so requests for the moved keys
+                // are forwarded to it instead of missing here
+                RangeSnapshot snapshot;
+                synchronized (mapMutex) {
+                    snapshot = snapshotRange(nsId, oldEnd, true);
+                    endIndex = nsId - 1;
+                    if (endIndex == -1)
+                        endIndex = HASH_SIZE - 1;
+                    synchronized (nextMutex) {
+                        nextServer.setIp(nsIp);
+                        nextServer.setPort(nsPort);
+                        nextServer.setId(nsId);
+                    }
+                }
+
+                // Peers must stop ruling keys out from our old summary before the new node can store them, it
+                // only announces its own to the peers it has learned of so far
+                summaryChanged();
+                awaitSummary();
 
-                // Update this server's next server
-                setNext(ip, listenPort, nsIp, nsPort, nsId);
+                // Transfer data from nsId to the old endIndex, keeping our copy until the new node has verified it
+                synchronized (handoffs) {
+                    handoffs.put(oldEnd, snapshot);
+                }
+                transferRange(snapshot, oldEnd, nsIp, nsPort);
 
-                // Update endIndex
-                endIndex = nsId - 1;
-                if (endIndex == -1)
-                    endIndex = HASH_SIZE - 1;
+                // Update next server's previous server
+                setPrev(nextIp, nextPort, nsIp, nsPort, nsId);
 
-                String successMsg = PRINT + " " + "Name Server " + nsId + " successfully added to the system.";
-                sendMessage(successMsg, bootIp, bootPort);
+                // Gossip spreads the new member, nothing to report to a coordinator
+                learnMember(nsId, nsIp, nsPort);
+                System.out.println();
+                System.out.println("Name Server " + nsId + " successfully added to the system.");
+                System.out.print(prompt);
 
                 sendMessage(nsMsg, nsIp, nsPort);
 
             } else {
                 String message = REGISTER + " " + nsIp + " " + nsPort + " " + nsId + " " + args[4];
-                sendMessage(message, getNextIp(), getNextPort());
+                forward(message, nsId);
             }
         }
 
+        // Our successor is leaving and hands us its range, it keeps serving until we acknowledge
         private void exitSystem() throws IOException {
 
-            if (args.length != 2) {
-                System.out.println("Error : cannot exit Name Server without id");
+            if (args.length != 10 && args.length != 11) {
+                System.out.println("Error : Exit expects an id, end index, successor, reply address, part count, digest and data");
                 return;
             }
 
             int nsId;
+            int nsEnd;
+            int nextPort;
+            int nextId;
+            int nsPort;
+            int parts;
             try {
                 nsId = Integer.parseInt(args[1]);
+                nsEnd = Integer.parseInt(args[2]);
+                nextPort = Integer.parseInt(args[4]);
+                nextId = Integer.parseInt(args[5]);
+                nsPort = Integer.parseInt(args[7]);
+                parts = Integer.parseInt(args[8]);
             } catch (NumberFormatException e) {
-                System.out.println("Error : " + args[1] + " is not a number.");
+                System.out.println("Error : Malformed exit command.");
                 return;
             }
+            String nextIp = args[3];
+            String nsIp = args[6];
 
-            if (nsId == getNextId()) {
-                // tell NS of nsId to transfer all data to previous.
-                String message = TRANSFER_REQUEST + " " + ip + " " + listenPort;
-                sendMessage(message, getNextIp(), getNextPort());
-
-                message = REMOVE_SELF + " ";
-                sendMessage(message, getNextIp(), getNextPort());
-            } else {
-                // System.out.println("Relaying exit of " + nsId + " to next NS.");
+            if (nsId != getNextId()) {
+                System.out.println("Error : Name Server " + nsId + " is not our successor.");
+                return;
+            }
 
-                String message = EXIT + " " + nsId;
-                sendMessage(message, getNextIp(), getNextPort());
+            // Data goes in before we claim the range, and the range is only claimed once every part is in
+            // and it checks out. Parts arrive over separate connections in any order
+            if (args.length == 11)
+                storeEntries(args[10]);
+            synchronized (mapMutex) {
+                int received = transferParts.merge(nsEnd, 1, Integer::sum);
+                if (received < parts)
+                    return;
+                transferParts.remove(nsEnd);
             }
-        }
 
-        private void removeSelf() throws IOException {
-            setNext(getPrevIp(), getPrevPort(), getNextIp(), getNextPort(), getNextId());
-            setPrev(getNextIp(), getNextPort(), getPrevIp(), getPrevPort(), getPrevId());
+            verifyHandoff(new Handoff(nsEnd, args[9], nsIp, nsPort, () -> {
+                synchronized (mapMutex) {
+                    endIndex = nsEnd;
+                    synchronized (nextMutex) {
+                        nextServer.setIp(nextId == id ? ip : nextIp);
+                        nextServer.setPort(nextId == id ? listenPort : nextPort);
+                        nextServer.setId(nextId);
+                    }
+                }
+                setPrev(nextIp, nextPort, ip, listenPort, id);
+
+                sendMessage(HANDOFF_ACK + " " + id, nsIp, nsPort);
+            }));
         }
 
         private void receiveTransfer() throws IOException {
-            if (args.length != 3) {
-                System.out.println("Error : Transfer expects only 2 arguments");
+            if (args.length != 4 && args.length != 5) {
+                System.out.println("Error : Transfer expects an end index, a part count, a digest and data");
                 return;
             }
 
-            endIndex = Integer.parseInt(args[1]);
-            String data = args[2];
-
-            String[] entries = data.split(";");
-            for (int i = 0; i < entries.length; i++) {
+            int end;
+            int parts;
+            try {
+                end = Integer.parseInt(args[1]);
+                parts = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed transfer command.");
+                return;
+            }
 
-                String[] entry = entries[i].split(",");
+            // Data goes in before we claim the range, so we never answer for keys still in flight
+            if (args.length == 5)
+                storeEntries(args[4]);
 
-                if (entry.length != 2)
-                    throw new IOException();
+            synchronized (mapMutex) {
+                // Parts arrive over separate connections in any order, the last one in checks the range
+                int received = transferParts.merge(end, 1, Integer::sum);
+                if (received < parts)
+                    return;
+                transferParts.remove(end);
+            }
 
-                int index = Integer.parseInt(entry[0]);
-                String name = entry[1];
+            // Our predecessor is the sender, register() points us at it before transferring
+            String senderIp = getPrevIp();
+            int senderPort = getPrevPort();
+            verifyHandoff(new Handoff(end, args[3], senderIp, senderPort, () -> {
+                synchronized (mapMutex) {
+                    endIndex = end;
+                }
+                sendMessage(TRANSFER_ACK + " " + end, senderIp, senderPort);
+            }));
+        }
+
+        // transfer_resend <end> <segments> <ip> <port>: the receiver's copy of these segments differs from ours
+        private void resendSegments() throws IOException {
+            if (args.length != 5) {
+                System.out.println("Error : Transfer resend expects an end index, segments and an address");
+                return;
+            }
+
+            int end;
+            int port;
+            String[] fields = args[2].split(",");
+            int[] segments = new int[fields.length];
+            try {
+                end = Integer.parseInt(args[1]);
+                port = Integer.parseInt(args[4]);
+                for (int n = 0; n < fields.length; n++)
+                    segments[n] = Integer.parseInt(fields[n]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed transfer resend.");
+                return;
+            }
+
+            RangeSnapshot snapshot;
+            synchronized (handoffs) {
+                snapshot = handoffs.get(end);
+            }
+            if (snapshot == null) {
+                System.out.println("Error : No handoff of the range ending at " + end + " to resend from");
+                return;
+            }
+
+            // Only the segments asked for, in as few frames as they fit
+            long now = System.currentTimeMillis();
+            StringBuilder data = new StringBuilder();
+            for (int segment : segments) {
+                int lo = segment * TRANSFER_SLICE;
+                if (segment < 0 || lo >= snapshot.values.length) {
+                    System.out.println("Error : Malformed transfer resend.");
+                    return;
+                }
+                for (String slice : new SerializeTask(snapshot, lo, Math.min(lo + TRANSFER_SLICE, snapshot.values.length), now).compute()) {
+                    if (data.length() > 0)
+                        data.append(";");
+                    data.append(slice);
+                }
+            }
+            List<String> frames = splitBatch(data.toString());
+            if (frames.isEmpty())
+                frames.add("");
+            for (String frame : frames)
+                sendMessage(TRANSFER_REPAIR + " " + end + " " + frames.size() + " " + encodeData(frame), args[3], port);
+        }
+
+        // transfer_ack <end>: the receiver verified the range, our copy can go
+        private void transferAck() {
+            if (args.length != 2) {
+                System.out.println("Error : Transfer ack expects an end index");
+                return;
+            }
+            try {
+                int end = Integer.parseInt(args[1]);
+                synchronized (handoffs) {
+                    handoffs.remove(end);
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed transfer ack.");
+            }
+        }
+
+        // transfer_repair <end> <parts> [data]
+        private void receiveRepair() throws IOException {
+            if (args.length != 3 && args.length != 4) {
+                System.out.println("Error : Transfer repair expects an end index, a part count and data");
+                return;
+            }
+
+            int end;
+            int parts;
+            try {
+                end = Integer.parseInt(args[1]);
+                parts = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed transfer repair.");
+                return;
+            }
+
+            Handoff handoff;
+            synchronized (handoffs) {
+                handoff = pendingHandoffs.get(end);
+            }
+            if (handoff == null)
+                return;
+
+            if (args.length == 4)
+                storeEntries(args[3]);
+
+            synchronized (handoff) {
+                if (++handoff.repairParts < parts)
+                    return;
+                handoff.repairParts = 0;
+            }
+            verifyHandoff(handoff);
+        }
+
+        private void ringWalk() throws IOException {
+            if (args.length != 4 && args.length != 5) {
+                System.out.println("Error : Ring walk expects a reply address, a start id and a node list");
+                return;
+            }
+
+            String replyIp = args[1];
+            int replyPort;
+            int startId;
+            try {
+                replyPort = Integer.parseInt(args[2]);
+                startId = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed ring walk command.");
+                return;
+            }
+
+            String nodes = args.length == 5 ? args[4] : "";
+
+            // The first node to see the walk is where it has to end
+            if (nodes.length() == 0) {
+                startId = id;
+            } else if (id == startId) {
+                sendMessage(RING_VIEW + " " + nodes, replyIp, replyPort);
+                return;
+            }
+
+            if (nodes.length() > 0)
+                nodes += ",";
+            nodes += id + ":" + startIndex + ":" + endIndex + ":" + ip + ":" + listenPort;
+
+            String message = RING_WALK + " " + replyIp + " " + replyPort + " " + startId + " " + nodes;
+            sendMessage(message, getNextIp(), getNextPort());
+        }
+
+        private void bulkInsert() throws IOException {
+            if (args.length != 2) {
+                System.out.println("Error : Bulk insert expects a single data argument");
+                return;
+            }
+
+            // Keep what we own, pass the rest on in a single batch
+            StringBuilder forward = new StringBuilder();
+            String[] entries = decodeData(args[1]).split(";");
+            for (String e : entries) {
+
+                int comma = e.indexOf(',');
+                if (comma <= 0 || comma == e.length() - 1)
+                    continue;
+
+                int key;
+                String value;
+                try {
+                    key = Integer.parseInt(e.substring(0, comma));
+                    value = unescapeValue(e.substring(comma + 1));
+                } catch (NumberFormatException | IOException ex) {
+                    continue;
+                }
+                if (key < 0 || key >= HASH_SIZE)
+                    continue;
+
+                if (isInRange(key)) {
+                    synchronized (mapMutex) {
+                        String old = map[key];
+                        map[key] = value;
+                        versions[key]++;
+                        expiries[key] = 0;
+                        keyChanged(key, old);
+                    }
+                } else {
+                    sawWrite(key);
+                    if (forward.length() > 0)
+                        forward.append(";");
+                    forward.append(e);
+                }
+            }
+
+            // No reply goes back, so there is no acknowledgement to hold until the new keys are announced
+            if (forward.length() > 0)
+                sendMessage(BULK_INSERT + " " + encodeData(forward.toString()), getNextIp(), getNextPort());
+        }
+
+        // direct <request>: only handed here when the request isn't ours
+        private void wrongOwner() {
+            String[] request = tokenize(message.substring(DIRECT.length() + 1));
+            int at = replyIndex(opcode(request[0]));
+            if (at < 0 || request.length < at + 3)
+                return;
+            try {
+                trySend(WRONG_OWNER + " " + ringView(null), request[at + 1], Integer.parseInt(request[at + 2]));
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed direct request.");
+            }
+        }
+
+        // view <ip> <port> <known>: entries the client has older versions of, or hasn't seen
+        private void view() throws IOException {
+            if (args.length != 4) {
+                System.out.println("Error : View expects a reply address and the versions known");
+                return;
+            }
+
+            Map<Integer, Long> known = new HashMap<>();
+            int replyPort;
+            try {
+                replyPort = Integer.parseInt(args[2]);
+                if (!args[3].equals(NO_TRACE)) {
+                    for (String entry : args[3].split(",")) {
+                        int dot = entry.indexOf('.');
+                        known.put(Integer.parseInt(entry.substring(0, dot)), Long.parseLong(entry.substring(dot + 1)));
+                    }
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                System.out.println("Error : Malformed view request.");
+                return;
+            }
+
+            sendMessage(RING_UPDATE + " " + ringView(known), args[1], replyPort);
+        }
+
+        private void gossip() throws IOException {
+            if (args.length != 4) {
+                System.out.println("Error : Gossip expects a sender address and a digest");
+                return;
+            }
+
+            int senderPort;
+            try {
+                senderPort = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : " + args[2] + " is not a number.");
+                return;
+            }
+
+            mergeDigest(args[3]);
+
+            // Push-pull: answer a gossip with our own view
+            if (command.equals(GOSSIP))
+                trySend(GOSSIP_ACK + " " + ip + " " + listenPort + " " + digest(), args[1], senderPort);
+        }
+
+        // A peer could not reach the target itself and asks us to try from here
+        private void pingReq() {
+            if (args.length != 6) {
+                System.out.println("Error : Ping request expects a target id, its address and a reply address");
+                return;
+            }
+
+            int targetPort;
+            int replyPort;
+            try {
+                Integer.parseInt(args[1]);
+                targetPort = Integer.parseInt(args[3]);
+                replyPort = Integer.parseInt(args[5]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed ping request.");
+                return;
+            }
+
+            // The probe is a gossip of its own, so it spreads our view on the way
+            if (trySend(GOSSIP + " " + ip + " " + listenPort + " " + digest(), args[2], targetPort))
+                trySend(PING_ACK + " " + args[1], args[4], replyPort);
+        }
+
+        private void pingAck() {
+            if (args.length != 2) {
+                System.out.println("Error : Ping ack expects a target id");
+                return;
+            }
+
+            int target;
+            try {
+                target = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : " + args[1] + " is not a number.");
+                return;
+            }
+            synchronized (probeAcks) {
+                probeAcks.add(target);
+                probeAcks.notifyAll();
+            }
+        }
+
+        // A key outside the hash space is nobody's, it would circle the ring or index past the map
+        private boolean validKey(int key, String trace, String replyIp, int replyPort) throws IOException {
+            if (key >= 0 && key < HASH_SIZE)
+                return true;
+            sendMessage(PRINT + " " + parseTrace(trace, true) + "Error : Invalid key " + key, replyIp, replyPort);
+            return false;
+        }
+
+        private void write() throws IOException {
+
+            if (args.length != 7) {
+                System.out.println("Error : " + command + " expects a key, expected value, new value, trace and reply address.");
+                return;
+            }
+
+            int key;
+            int replyPort;
+            try {
+                key = Integer.parseInt(args[1]);
+                replyPort = Integer.parseInt(args[6]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed " + command + " command.");
+                return;
+            }
+            String replyIp = args[5];
+
+            args[4] = appendTrace(args[4]);
+            if (!validKey(key, args[4], replyIp, replyPort))
+                return;
+
+            if (isInRange(key)) {
+                String message = PRINT + " " + parseTrace(args[4], true) + applyWrite(command, key, args[2], args[3]);
+                replyAfterSummary(message, replyIp, replyPort);
+            } else {
+                sawWrite(key);
+                String message = command + " " + key + " " + args[2] + " " + args[3] + " " + args[4]
+                        + " " + replyIp + " " + replyPort;
+                forward(message, key);
+            }
+        }
+
+        // Sent by our predecessor, we decide whether the boundary between us should move
+        private void load() throws IOException {
+            if (args.length != 7) {
+                System.out.println("Error : Load report expects an address, id, ops, keys and end index");
+                return;
+            }
+
+            String prevIp = args[1];
+            int prevPort;
+            long prevOps;
+            long prevKeys;
+            int prevEnd;
+            try {
+                prevPort = Integer.parseInt(args[2]);
+                prevOps = Long.parseLong(args[4]);
+                prevKeys = Long.parseLong(args[5]);
+                prevEnd = Integer.parseInt(args[6]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed load report.");
+                return;
+            }
+
+            // Reports can cross an in-flight move, so leave the boundary alone right after one
+            if (!rebalanceAllowed() || draining || endIndex < 0)
+                return;
+
+            int boundary = (startIndex - 1 + HASH_SIZE) % HASH_SIZE;
+            if (prevEnd != boundary) {
+                // Heal a boundary left behind by a failure repair
+                sendMessage(SET_END + " " + boundary, prevIp, prevPort);
+                return;
+            }
+
+            // Balance on traffic when there is some, on key counts otherwise
+            long[] mine = loadStats();
+            boolean byOps = Math.max(prevOps, mine[0]) >= REBALANCE_MIN_OPS;
+            long myLoad = byOps ? mine[0] : mine[1];
+            long prevLoad = byOps ? prevOps : prevKeys;
+
+            if (myLoad > prevLoad * REBALANCE_RATIO + REBALANCE_MIN_DIFF) {
+                String data;
+                int newEnd;
+                synchronized (mapMutex) {
+                    int slots = slotsToShed((myLoad - prevLoad) / 2, byOps, true);
+                    if (slots == 0)
+                        return;
+                    newEnd = (startIndex + slots - 1) % HASH_SIZE;
+                    data = drainRange(startIndex, newEnd);
+                    startIndex = (newEnd + 1) % HASH_SIZE;
+                }
+                rebalanced();
+                sendMessage(MOVE_RANGE + " t " + newEnd + " " + encodeData(data), prevIp, prevPort);
+                System.out.println();
+                System.out.println("Rebalanced: range now starts at " + startIndex);
+                System.out.print(prompt);
+            } else if (prevLoad > myLoad * REBALANCE_RATIO + REBALANCE_MIN_DIFF) {
+                rebalanced();
+                String message = SHED + " " + (byOps ? "o" : "k") + " " + (prevLoad - myLoad) / 2
+                        + " " + ip + " " + listenPort;
+                sendMessage(message, prevIp, prevPort);
+            }
+        }
+
+        // Our successor asked us to hand the tail of our range over
+        private void shed() throws IOException {
+            if (args.length != 5) {
+                System.out.println("Error : Shed expects a metric, an amount and an address");
+                return;
+            }
+
+            long amount;
+            int nextPort;
+            try {
+                amount = Long.parseLong(args[2]);
+                nextPort = Integer.parseInt(args[4]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed shed command.");
+                return;
+            }
+
+            if (draining || endIndex < 0)
+                return;
+
+            String data;
+            int newStart;
+            synchronized (mapMutex) {
+                int slots = slotsToShed(amount, args[1].equals("o"), false);
+                if (slots == 0)
+                    return;
+                newStart = (endIndex - slots + 1 + HASH_SIZE) % HASH_SIZE;
+                data = drainRange(newStart, endIndex);
+                endIndex = (newStart - 1 + HASH_SIZE) % HASH_SIZE;
+            }
+            rebalanced();
+            sendMessage(MOVE_RANGE + " h " + newStart + " " + encodeData(data), args[3], nextPort);
+            System.out.println();
+            System.out.println("Rebalanced: range now ends at " + endIndex);
+            System.out.print(prompt);
+        }
+
+        // Takes over the slots a neighbour shed onto the head (h) or tail (t) of our range, or merges back (b)
+        // what a neighbour took over while it wrongly thought us dead
+        private void moveRange() throws IOException {
+            if (args.length != 3 && args.length != 4) {
+                System.out.println("Error : Move range expects a side, a boundary and data");
+                return;
+            }
+
+            int boundary;
+            try {
+                boundary = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : " + args[2] + " is not a number.");
+                return;
+            }
+
+            if (args[1].equals(MERGE_SIDE)) {
+                if (args.length == 4)
+                    storeEntries(args[3], true);
+                return;
+            }
+
+            // Data goes in first so the slots are never in range while still empty
+            if (args.length == 4)
+                storeEntries(args[3]);
+
+            synchronized (mapMutex) {
+                if (args[1].equals("h"))
+                    startIndex = boundary;
+                else
+                    endIndex = boundary;
+            }
+        }
+
+        private void lookup() throws IOException {
+
+            if (args.length != 5) {
+                System.out.println("Error : Expected a key, id trace and reply address.");
+                return;
+            }
+
+            int key;
+            int replyPort;
+            try {
+                key = Integer.parseInt(args[1]);
+                replyPort = Integer.parseInt(args[4]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed lookup command.");
+                return;
+            }
+            String replyIp = args[3];
 
+            // A request that already passed through here is circling a ring in flux, waiting on
+            // a flight it feeds into would deadlock it
+            boolean looped = traceContains(args[2], id);
+
+            // Update trace!
+            args[2] = appendTrace(args[2]);
+            if (!validKey(key, args[2], replyIp, replyPort))
+                return;
+
+            // Shared lookups come from a node that fans the answer out, so it gets the raw result
+            Waiter waiter = new Waiter(args[2], replyIp, replyPort, op == OP_SHARED_LOOKUP);
+            int owner;
+
+            if (isInRange(key)) {
+
+                String value;
+                long version;
                 synchronized (mapMutex) {
-                    map[index] = name;
+                    expire(key);
+                    hits[key]++;
+                    value = map[key];
+                    version = versions[key];
+                }
+
+                // Send to the node the request entered at
+                answerLookup(waiter, key, args[2], value, version, id);
+
+            } else if ((owner = summaryMiss(key)) >= 0) {
+                // A fresh summary of the owner's keys already says no, no need to walk the ring
+                answerLookup(waiter, key, args[2], null, 0, owner);
+            } else {
+                boolean lead;
+                synchronized (flightMutex) {
+                    long now = System.currentTimeMillis();
+                    boolean hot = now - lastForwarded[key] < HOT_WINDOW;
+                    lastForwarded[key] = now;
+
+                    Flight flight = looped ? null : flights.get(key);
+                    if (flight != null && now - flight.started < FLIGHT_TIMEOUT) {
+                        flight.waiters.add(waiter);
+                        return;
+                    }
+
+                    // Cold keys go straight through, the owner answers the requester directly
+                    lead = !looped && (hot || flight != null);
+                    if (lead) {
+                        // A flight that timed out hands its waiters to the retry
+                        Flight retry = new Flight(now);
+                        if (flight != null)
+                            retry.waiters.addAll(flight.waiters);
+                        retry.waiters.add(waiter);
+                        flights.put(key, retry);
+                    }
+                }
+
+                StringBuilder out = scratch();
+                if (lead)
+                    out.append(SHARED_LOOKUP).append(' ').append(key).append(' ').append(id)
+                            .append(' ').append(ip).append(' ').append(listenPort);
+                else
+                    out.append(command).append(' ').append(key).append(' ').append(args[2])
+                            .append(' ').append(replyIp).append(' ').append(replyPort);
+                forward(out, key);
+            }
+
+        }
+
+        // Answer for a flight we led, fan it out to everyone who piggybacked on it
+        private void lookupResult() throws IOException {
+
+            if (args.length != 7) {
+                System.out.println("Error : Lookup result expects a key, trace, status, value, version and owner.");
+                return;
+            }
+
+            int key;
+            long version;
+            int owner;
+            try {
+                key = Integer.parseInt(args[1]);
+                version = Long.parseLong(args[5]);
+                owner = Integer.parseInt(args[6]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed lookup result.");
+                return;
+            }
+            boolean busy = args[3].equals("2");
+            String value = args[3].equals("1") ? args[4] : null;
+
+            Flight flight;
+            synchronized (flightMutex) {
+                flight = flights.remove(key);
+            }
+            if (flight == null)
+                return;
+
+            // Our own id starts the downstream trace and already ends every waiter's trace
+            String downstream = args[2];
+            int comma = downstream.indexOf(',');
+            String tail = comma == -1 ? "" : downstream.substring(comma);
+
+            if (busy)
+                failFlight(flight, key, tail, "Name Server " + owner + " is overloaded or cannot reach the owner");
+            else
+                answerFlight(flight, key, tail, value, version, owner);
+        }
+
+        // reverse_lookup <slot> <value> <trace> <reply ip> <reply port>
+        private void reverseLookup() throws IOException {
+
+            if (args.length != 6) {
+                System.out.println("Error : Reverse lookup expects a slot, a value, a trace and a reply address.");
+                return;
+            }
+
+            int slot;
+            int replyPort;
+            try {
+                slot = Integer.parseInt(args[1]);
+                replyPort = Integer.parseInt(args[5]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed reverse lookup command.");
+                return;
+            }
+            String replyIp = args[4];
+
+            args[3] = appendTrace(args[3]);
+            if (!validKey(slot, args[3], replyIp, replyPort))
+                return;
+
+            String keys = null;
+            synchronized (mapMutex) {
+                if (isInRange(slot))
+                    keys = describeKeys(args[2]);
+            }
+
+            if (keys != null) {
+                sendMessage(PRINT + " " + parseTrace(args[3], true) + keys, replyIp, replyPort);
+            } else {
+                String message = REVERSE_LOOKUP + " " + slot + " " + args[2] + " " + args[3]
+                        + " " + replyIp + " " + replyPort;
+                forward(message, slot);
+            }
+        }
+
+        // watch|unwatch <from> <to> <trace> <reply ip> <reply port>. We take the part of the range we own
+        // and pass the rest on, so a range spanning several nodes ends up registered with each of them
+        private void watch() throws IOException {
+
+            if (args.length != 6) {
+                System.out.println("Error : " + command + " expects a range, a trace and a reply address.");
+                return;
+            }
+
+            int from;
+            int to;
+            int replyPort;
+            try {
+                from = Integer.parseInt(args[1]);
+                to = Integer.parseInt(args[2]);
+                replyPort = Integer.parseInt(args[5]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed " + command + " command.");
+                return;
+            }
+
+            args[3] = appendTrace(args[3]);
+            if (!validKey(from, args[3], args[4], replyPort) || !validKey(to, args[3], args[4], replyPort))
+                return;
+            String subscriber = args[4] + ":" + args[5];
+
+            int last = -1;
+            synchronized (mapMutex) {
+                if (isInRange(from)) {
+                    int span = (to - from + HASH_SIZE) % HASH_SIZE;
+                    last = span <= (endIndex - from + HASH_SIZE) % HASH_SIZE ? to : endIndex;
+                    String reply = PRINT + " " + parseTrace(args[3], true)
+                            + (op == OP_WATCH ? "Watching" : "Stopped watching") + " keys " + from + " to " + last
+                            + " on Name Server " + id;
+                    if (op == OP_WATCH)
+                        addWatch(subscriber, from, last, reply);
+                    else
+                        removeWatch(subscriber, from, last, reply);
+                }
+            }
+
+            if (last == -1) {
+                forward(command + " " + from + " " + to + " " + args[3] + " " + args[4] + " " + args[5], from);
+            } else if (last != to) {
+                int next = (last + 1) % HASH_SIZE;
+                forward(command + " " + next + " " + to + " " + args[3] + " " + args[4] + " " + args[5], next);
+            }
+        }
+
+        // Keep the index entries we own, pass the rest on in a single batch like bulkInsert
+        private void indexUpdate() throws IOException {
+            if (args.length != 2) {
+                System.out.println("Error : Index update expects a single data argument");
+                return;
+            }
+
+            String rest = applyIndex(decodeData(args[1]));
+            if (!rest.isEmpty())
+                sendMessage(INDEX_UPDATE + " " + encodeData(rest), getNextIp(), getNextPort());
+        }
+
+        private void print() {
+
+            int i = message.indexOf(' ');
+            if (i == -1) {
+                System.out.println("Error : Malformed print command.");
+                return;
+            }
+
+            String msg = message.substring(i + 1);
+            System.out.println();
+            System.out.println(msg);
+            System.out.print(prompt);
+        }
+
+        private void insert() throws IOException {
+            if (args.length != 6 && args.length != 7) {
+                System.out.println("Error : insert requires [key], [value], a trace, a reply address and an optional ttl.");
+                return;
+            } else {
+
+                args[3] = appendTrace(args[3]);
+
+                int key;
+                int replyPort;
+                long ttl;
+                String value = args[2];
+                try {
+                    key = Integer.parseInt(args[1]);
+                    replyPort = Integer.parseInt(args[5]);
+                    ttl = args.length == 7 ? Long.parseLong(args[6]) : 0;
+                } catch (NumberFormatException e) {
+                    System.out.println("Error : Malformed insert command.");
+                    return;
+                }
+                String replyIp = args[4];
+                if (!validKey(key, args[3], replyIp, replyPort))
+                    return;
+
+                if (isInRange(key)) {
+                    boolean isAvailable = false;
+                    String curValue;
+                    synchronized (mapMutex) {
+                        expire(key);
+                        hits[key]++;
+                        curValue = map[key];
+                        if (curValue == null) {
+                            map[key] = value;
+                            versions[key]++;
+                            setExpiry(key, ttl);
+                            keyChanged(key, null);
+                            isAvailable = true;
+                        }
+                    }
+
+                    String message = PRINT + " " + parseTrace(args[3], true);
+                    if (isAvailable)
+                        message += "Successfully added (" + key + ", " + value + ") to Name Server " + id;
+                    else
+                        message += "Error : Value \"" + curValue + "\" already associated with key " + key;
+                    replyAfterSummary(message, replyIp, replyPort);
+                } else {
+                    sawWrite(key);
+                    String message = INSERT + " " + key + " " + value + " " + args[3] + " " + replyIp + " " + replyPort
+                            + " " + ttl;
+                    forward(message, key);
+                }
+            }
+        }
+
+        private void delete() throws IOException {
+
+            if (args.length != 5) {
+                System.out.println("Error : Expected a key to delete from the System, a trace string and a reply address.");
+                return;
+            }
+
+            // Update trace!
+            args[2] = appendTrace(args[2]);
+
+            int key;
+            int replyPort;
+            try {
+                key = Integer.parseInt(args[1]);
+                replyPort = Integer.parseInt(args[4]);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed delete command.");
+                return;
+            }
+            String replyIp = args[3];
+            if (!validKey(key, args[2], replyIp, replyPort))
+                return;
+
+            if (isInRange(key)) {
+                String message;
+                synchronized (mapMutex) {
+                    expire(key);
+                    hits[key]++;
+                    String value = map[key];
+                    if (value == null) {
+                        message = PRINT + " " + parseTrace(args[2], true) + "Key not found.";
+                    } else {
+                        map[key] = null;
+                        versions[key]++;
+                        expiries[key] = 0;
+                        keyChanged(key, value);
+                        message = PRINT + " " + parseTrace(args[2], true) + "Successful deletion";
+                    }
+                }
+                sendMessage(message, replyIp, replyPort);
+            } else {
+                // System.out.println("Calling DELETE on next name server");
+
+                // COMMAND CONSTANT
+                String message = DELETE + " " + key + " " + args[2] + " " + replyIp + " " + replyPort;
+                forward(message, key);
+            }
+
+        }
+    }
+
+    /* ******* GENERAL HELPER FUNCTIONS ******* */
+
+    // Serializes [from, to] as "index,value,version[,ttl ms];..." and clears it locally. Values are escaped like
+    // index values, see escapeValue.
+    // Emptied keys go as "index,,version" so versions never go backwards on the new owner,
+    // the reverse index entries of the slots follow as "@value,key,version" and watches as "!ip:port,from,to"
+    protected String drainRange(int from, int to) {
+        return serializeRange(from, to, true);
+    }
+
+    protected String serializeRange(int from, int to, boolean clear) {
+        StringBuilder data = new StringBuilder();
+        for (int i = from; i != to + 1; i++) {
+
+            if (i == HASH_SIZE) {
+                i = -1;
+                continue;
+            }
+
+            synchronized (mapMutex) {
+                expire(i);
+                if (map[i] == null && versions[i] != 0) {
+                    if (data.length() > 0)
+                        data.append(";");
+                    data.append(i).append(",,").append(versions[i]);
+                } else if (map[i] != null) {
+                    if (data.length() > 0)
+                        data.append(";");
+                    data.append(i).append(",").append(escapeValue(map[i])).append(",").append(versions[i]);
+
+                    // Remaining time rather than a deadline, so clock skew between nodes doesn't matter
+                    if (expiries[i] != 0)
+                        data.append(",").append(Math.max(1, expiries[i] - System.currentTimeMillis()));
+                }
+                if (clear) {
+                    map[i] = null;
+                    expiries[i] = 0;
+                }
+            }
+        }
+        synchronized (mapMutex) {
+            serializeIndex(data, from, to, clear);
+            serializeWatches(data, from, to, clear);
+        }
+        return data.toString();
+    }
+
+    /* ******* RANGE TRANSFER ******* */
+
+    // Keeps each frame comfortably below the writeUTF limit. Counted in bytes of modified UTF-8, see utfLength,
+    // since that is what the limit is on and a non-ASCII value takes up to three per char
+    protected static final int MAX_BATCH = 60000;
+    // Slots per serialization task, and connections used to stream a range to a joining node
+    protected static final int TRANSFER_SLICE = 64;
+    protected static final int TRANSFER_STREAMS = 4;
+
+    // Transfer parts received so far, keyed by the end index being handed over
+    protected final Map<Integer, Integer> transferParts = new HashMap<>();
+
+    // Copy of a range taken under mapMutex, so it can be serialized without holding the lock
+    protected static class RangeSnapshot {
+        final int from;
+        final String[] values;
+        final long[] versions;
+        final long[] expiries;
+        // Reverse index and watch entries for the range, already serialized
+        String extras;
+
+        RangeSnapshot(int from, int size) {
+            this.from = from;
+            values = new String[size];
+            versions = new long[size];
+            expiries = new long[size];
+        }
+    }
+
+    // Callers hold mapMutex. Copies the range out in one pass, clearing it like drainRange if asked to
+    protected RangeSnapshot snapshotRange(int from, int to, boolean clear) {
+        int size = (to - from + HASH_SIZE) % HASH_SIZE + 1;
+        RangeSnapshot snapshot = new RangeSnapshot(from, size);
+        for (int n = 0; n < size; n++) {
+            int i = (from + n) % HASH_SIZE;
+            expire(i);
+            snapshot.values[n] = map[i];
+            snapshot.versions[n] = versions[i];
+            snapshot.expiries[n] = expiries[i];
+            if (clear) {
+                map[i] = null;
+                expiries[i] = 0;
+            }
+        }
+        // Index and watch entries travel with the range either way, an exit keeps its own until it departs
+        StringBuilder extras = new StringBuilder();
+        serializeIndex(extras, from, to, clear);
+        serializeWatches(extras, from, to, clear);
+        snapshot.extras = extras.toString();
+        return snapshot;
+    }
+
+    // Serializes slices of a snapshot in parallel, each slice into one or more frames of at most MAX_BATCH
+    protected static class SerializeTask extends RecursiveTask<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeSnapshot snapshot;
+        private final int lo;
+        private final int hi;
+        private final long now;
+
+        SerializeTask(RangeSnapshot snapshot, int lo, int hi, long now) {
+            this.snapshot = snapshot;
+            this.lo = lo;
+            this.hi = hi;
+            this.now = now;
+        }
+
+        @Override
+        protected List<String> compute() {
+            if (hi - lo > TRANSFER_SLICE) {
+                int mid = (lo + hi) >>> 1;
+                SerializeTask left = new SerializeTask(snapshot, lo, mid, now);
+                left.fork();
+                List<String> right = new SerializeTask(snapshot, mid, hi, now).compute();
+                List<String> frames = left.join();
+                frames.addAll(right);
+                return frames;
+            }
+
+            List<String> frames = new ArrayList<>();
+            StringBuilder data = new StringBuilder();
+            int bytes = 0;
+            for (int n = lo; n < hi; n++) {
+                if (snapshot.values[n] == null && snapshot.versions[n] == 0)
+                    continue;
+
+                int start = data.length();
+                if (start > 0)
+                    data.append(";");
+                data.append((snapshot.from + n) % HASH_SIZE).append(",")
+                        .append(snapshot.values[n] == null ? "" : escapeValue(snapshot.values[n]))
+                        .append(",").append(snapshot.versions[n]);
+                // Remaining time rather than a deadline, so clock skew between nodes doesn't matter
+                if (snapshot.expiries[n] != 0)
+                    data.append(",").append(Math.max(1, snapshot.expiries[n] - now));
+
+                bytes += utfLength(data, start, data.length());
+                if (bytes > MAX_BATCH && start > 0) {
+                    String entry = data.substring(start + 1);
+                    data.setLength(start);
+                    frames.add(data.toString());
+                    data.setLength(0);
+                    data.append(entry);
+                    bytes = utfLength(entry, 0, entry.length());
+                }
+            }
+            if (data.length() > 0)
+                frames.add(data.toString());
+            return frames;
+        }
+    }
+
+    // Streams the range over several connections, the receiver claims it once every part is in
+    protected void transferRange(RangeSnapshot snapshot, int end, String nsIp, int nsPort) throws IOException {
+        transferRange(snapshot, end, TRANSFER + " " + end, nsIp, nsPort);
+    }
+
+    // Every frame is head, the part count, the digest and its share of the data
+    protected void transferRange(RangeSnapshot snapshot, int end, String head, String nsIp, int nsPort) throws IOException {
+        String digest = rangeDigest(snapshot, end);
+        List<String> slices = ForkJoinPool.commonPool()
+                .invoke(new SerializeTask(snapshot, 0, snapshot.values.length, System.currentTimeMillis()));
+        slices.addAll(splitBatch(snapshot.extras));
+
+        // Every frame costs a connection, so slices are packed into as few as fit
+        List<String> frames = new ArrayList<>();
+        StringBuilder frame = new StringBuilder();
+        int bytes = 0;
+        for (String slice : slices) {
+            int size = utfLength(slice, 0, slice.length());
+            if (frame.length() > 0 && bytes + size + 1 > MAX_BATCH) {
+                frames.add(frame.toString());
+                frame.setLength(0);
+                bytes = 0;
+            }
+            if (frame.length() > 0) {
+                frame.append(";");
+                bytes++;
+            }
+            frame.append(slice);
+            bytes += size;
+        }
+        if (frame.length() > 0)
+            frames.add(frame.toString());
+
+        if (frames.isEmpty()) {
+            sendMessage(head + " 1 " + digest, nsIp, nsPort);
+            return;
+        }
+
+        int parts = frames.size();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(TRANSFER_STREAMS, parts));
+        List<Future<?>> pending = new ArrayList<>();
+        for (String data : frames) {
+            pending.add(pool.submit(() -> {
+                sendMessage(head + " " + parts + " " + digest + " " + encodeData(data), nsIp, nsPort);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> f : pending)
+                f.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Failed to transfer range to " + nsIp + ":" + nsPort, e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Splits ';' separated entries into pieces of at most MAX_BATCH bytes
+    protected static List<String> splitBatch(String data) {
+        List<String> pieces = new ArrayList<>();
+        int from = 0;
+        while (from < data.length()) {
+            int to = from;
+            for (int bytes = 0; to < data.length(); to++) {
+                bytes += utfLength(data, to, to + 1);
+                if (bytes > MAX_BATCH)
+                    break;
+            }
+            if (to < data.length()) {
+                int cut = data.lastIndexOf(';', to);
+                if (cut > from)
+                    to = cut;
+            }
+            pieces.add(data.substring(from, to));
+            from = to + 1;
+        }
+        return pieces;
+    }
+
+    /* ******* COMPRESSION ******* */
+
+    // Marks a Deflate compressed, Base64 encoded data argument. Plain data always starts with a key
+    protected static final String COMPRESSED = "z:";
+    // Data shorter than this goes as is, small frames are not worth the CPU
+    protected static final int COMPRESS_THRESHOLD = Integer.getInteger("ns.compressThreshold", 2048);
+    protected static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("ns.compress", "true"));
+
+    // Every node reads both forms, so each sender can decide for itself frame by frame
+    protected static String encodeData(String data) {
+        if (!COMPRESS || data.length() < COMPRESS_THRESHOLD)
+            return data;
+
+        byte[] raw = data.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(raw.length / 4);
+        byte[] buf = new byte[8192];
+        while (!deflater.finished())
+            packed.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+
+        // Random data can come out bigger, then it is not worth it
+        String encoded = COMPRESSED + Base64.getEncoder().encodeToString(packed.toByteArray());
+        return encoded.length() < data.length() ? encoded : data;
+    }
+
+    protected static String decodeData(String data) throws IOException {
+        if (!data.startsWith(COMPRESSED))
+            return data;
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(data.substring(COMPRESSED.length())));
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(data.length() * 4);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated compressed data");
+                raw.write(buf, 0, n);
+            }
+            return raw.toString(StandardCharsets.UTF_8.name());
+        } catch (IllegalArgumentException | DataFormatException e) {
+            throw new IOException("Malformed compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Inverse of drainRange. A malformed entry is skipped rather than losing the rest of the batch,
+    // the range digest catches what went missing
+    protected void storeEntries(String data) throws IOException {
+        storeEntries(data, false);
+    }
+
+    // A merge keeps whichever side has the newer version of a key, ours on a tie
+    protected void storeEntries(String data, boolean merge) throws IOException {
+        String[] entries = decodeData(data).split(";");
+        int skipped = 0;
+        for (int i = 0; i < entries.length; i++) {
+            try {
+                storeEntry(entries[i], merge);
+            } catch (IOException | RuntimeException e) {
+                skipped++;
+            }
+        }
+        if (skipped > 0)
+            System.out.println("Error : Skipped " + skipped + " malformed entr" + (skipped == 1 ? "y" : "ies"));
+    }
+
+    protected void storeEntry(String e, boolean merge) throws IOException {
+        if (e.isEmpty())
+            return;
+
+        if (e.startsWith(INDEX_ENTRY)) {
+            synchronized (mapMutex) {
+                indexEntry(e.substring(INDEX_ENTRY.length()));
+            }
+            return;
+        }
+        if (e.startsWith(WATCH_ENTRY)) {
+            synchronized (mapMutex) {
+                watchEntry(e.substring(WATCH_ENTRY.length()));
+            }
+            return;
+        }
+
+        String[] entry = e.split(",");
+
+        if (entry.length < 2 || entry.length > 4)
+            throw new IOException("Malformed entry " + e);
+
+        int index = Integer.parseInt(entry[0]);
+        String name = unescapeValue(entry[1]);
+        if (index < 0 || index >= HASH_SIZE)
+            throw new IOException("Malformed entry " + e);
+
+        synchronized (mapMutex) {
+            if (merge && (entry.length < 3 || Long.parseLong(entry[2]) <= versions[index]))
+                return;
+            // An emptied key only carries its version over
+            if (name.isEmpty()) {
+                map[index] = null;
+                versions[index] = Math.max(versions[index], Long.parseLong(entry[2]));
+                expiries[index] = 0;
+                return;
+            }
+            map[index] = name;
+            versions[index] = entry.length >= 3 ? Long.parseLong(entry[2]) : versions[index] + 1;
+            expiries[index] = 0;
+            if (entry.length == 4)
+                setExpiryMillis(index, Long.parseLong(entry[3]));
+        }
+    }
+
+    /* ******* VERIFIED HANDOFF ******* */
+
+    // Resend rounds before a receiver takes a range that still differs
+    protected static final int HANDOFF_RETRIES = 3;
+
+    // Ranges we handed over and keep until the receiver has verified them, keyed by end index
+    protected final Map<Integer, RangeSnapshot> handoffs = new HashMap<>();
+    // Ranges we received that are waiting on resent segments, keyed by end index. Both guarded by handoffs
+    protected final Map<Integer, Handoff> pendingHandoffs = new HashMap<>();
+
+    protected interface Claim {
+        void run() throws IOException;
+    }
+
+    // A received range, checked against the sender's digest before claim takes it over
+    protected static class Handoff {
+        final int end;
+        final String digest;
+        final String senderIp;
+        final int senderPort;
+        final Claim claim;
+        int attempts;
+        int repairParts;
+
+        Handoff(int end, String digest, String senderIp, int senderPort, Claim claim) {
+            this.end = end;
+            this.digest = digest;
+            this.senderIp = senderIp;
+            this.senderPort = senderPort;
+            this.claim = claim;
+        }
+    }
+
+    // "from/to/root/segment,segment,...": a SHA-256 per TRANSFER_SLICE slots, and one over those as the root.
+    // Leased keys are left out on both sides since a lease may legitimately run out in flight
+    protected static String rangeDigest(RangeSnapshot snapshot, int to) {
+        String[] segments = segmentDigests(snapshot);
+        MessageDigest root = sha256();
+        StringBuilder out = new StringBuilder();
+        for (int n = 0; n < segments.length; n++) {
+            root.update(segments[n].getBytes(StandardCharsets.UTF_8));
+            if (n > 0)
+                out.append(",");
+            out.append(segments[n]);
+        }
+        return snapshot.from + "/" + to + "/" + hex(root.digest(), 8) + "/" + out;
+    }
+
+    protected static String[] segmentDigests(RangeSnapshot snapshot) {
+        int count = (snapshot.values.length + TRANSFER_SLICE - 1) / TRANSFER_SLICE;
+        String[] segments = new String[count];
+        for (int seg = 0; seg < count; seg++) {
+            MessageDigest md = sha256();
+            int hi = Math.min(snapshot.values.length, (seg + 1) * TRANSFER_SLICE);
+            for (int n = seg * TRANSFER_SLICE; n < hi; n++) {
+                if (snapshot.values[n] == null || snapshot.expiries[n] != 0)
+                    continue;
+                md.update((n + "," + snapshot.values[n] + "," + snapshot.versions[n] + ";").getBytes(StandardCharsets.UTF_8));
+            }
+            segments[seg] = hex(md.digest(), 8);
+        }
+        return segments;
+    }
+
+    protected static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    protected static String hex(byte[] bytes, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16)).append(Character.forDigit(bytes[i] & 0xf, 16));
+        return sb.toString();
+    }
+
+    // Compares what we stored with the sender's digest. Claims the range if it matches, otherwise
+    // drops the differing segments and asks for just those again, and gives up without claiming after HANDOFF_RETRIES
+    protected void verifyHandoff(Handoff handoff) throws IOException {
+        String[] fields = handoff.digest.split("/", -1);
+        int from = -1;
+        int to = -1;
+        if (fields.length == 4) {
+            try {
+                from = Integer.parseInt(fields[0]);
+                to = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                from = -1;
+            }
+        }
+        if (from < 0 || from >= HASH_SIZE || to < 0 || to >= HASH_SIZE) {
+            System.out.println("Error : Malformed range digest, taking the range as is");
+            handoff.claim.run();
+            return;
+        }
+        String[] expected = fields[3].split(",");
+
+        List<Integer> differing = new ArrayList<>();
+        synchronized (mapMutex) {
+            RangeSnapshot copy = snapshotRange(from, to, false);
+            String[] actual = segmentDigests(copy);
+            for (int seg = 0; seg < actual.length; seg++) {
+                if (seg >= expected.length || !actual[seg].equals(expected[seg]))
+                    differing.add(seg);
+            }
+            if (!differing.isEmpty()) {
+                for (int seg : differing) {
+                    int hi = Math.min(copy.values.length, (seg + 1) * TRANSFER_SLICE);
+                    for (int n = seg * TRANSFER_SLICE; n < hi; n++) {
+                        int i = (from + n) % HASH_SIZE;
+                        map[i] = null;
+                        expiries[i] = 0;
+                    }
+                }
+            }
+        }
+
+        if (differing.isEmpty() || handoff.attempts >= HANDOFF_RETRIES) {
+            synchronized (handoffs) {
+                pendingHandoffs.remove(handoff.end);
+            }
+            // Acknowledging would make the sender drop the only good copy, so a range that never checks out
+            // is left unclaimed and the sender keeps serving from its copy
+            if (!differing.isEmpty()) {
+                System.out.println("Error : " + differing.size() + " segment(s) of the range ending at " + handoff.end
+                        + " still differ after " + HANDOFF_RETRIES + " resends, leaving it with Name Server at "
+                        + handoff.senderIp + ":" + handoff.senderPort);
+                return;
+            }
+            handoff.claim.run();
+            return;
+        }
+
+        handoff.attempts++;
+        synchronized (handoffs) {
+            pendingHandoffs.put(handoff.end, handoff);
+        }
+        StringBuilder segments = new StringBuilder();
+        for (int seg : differing) {
+            if (segments.length() > 0)
+                segments.append(",");
+            segments.append(seg);
+        }
+        System.out.println("Error : " + differing.size() + " segment(s) of the range ending at " + handoff.end
+                + " differ, asking Name Server at " + handoff.senderIp + ":" + handoff.senderPort + " to resend them");
+        sendMessage(TRANSFER_RESEND + " " + handoff.end + " " + segments + " " + ip + " " + listenPort,
+                handoff.senderIp, handoff.senderPort);
+    }
+
+    /* ******* REVERSE INDEX ******* */
+
+    // Marks a reverse index entry inside range data, key entries always start with a digit
+    protected static final String INDEX_ENTRY = "@";
+
+    // "value,key,version" updates waiting to be routed to the owner of the value's slot.
+    // Removals carry the negated version of the write that replaced the value
+    protected final BlockingQueue<String> indexQueue = new LinkedBlockingQueue<>();
+
+    // A removal's tombstone only has to outlive the older adds still queued or in flight behind it
+    protected static final long INDEX_TOMBSTONE_TTL = 120000;
+
+    // Tombstones in the order they were written, {deadline, value, key, version}. Guarded by mapMutex
+    protected final ArrayDeque<Object[]> indexTombstones = new ArrayDeque<>();
+
+    // Values are client data, so the separators of index entries, range data and frames are escaped
+    protected static String escapeValue(String value) {
+        StringBuilder out = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' || c == ',' || c == ';' || c == ' ' || c == '\n' || c == '\r') {
+                if (out == null)
+                    out = new StringBuilder(value.length() + 8).append(value, 0, i);
+                out.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+            } else if (out != null) {
+                out.append(c);
+            }
+        }
+        return out == null ? value : out.toString();
+    }
+
+    protected static String unescapeValue(String value) throws IOException {
+        int i = value.indexOf('%');
+        if (i == -1)
+            return value;
+        StringBuilder out = new StringBuilder(value.length()).append(value, 0, i);
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '%') {
+                out.append(c);
+                continue;
+            }
+            int hi = i + 2 < value.length() ? Character.digit(value.charAt(i + 1), 16) : -1;
+            int lo = hi >= 0 ? Character.digit(value.charAt(i + 2), 16) : -1;
+            if (lo < 0)
+                throw new IOException("Malformed escape in " + value);
+            out.append((char) (hi << 4 | lo));
+            i += 2;
+        }
+        return out.toString();
+    }
+
+    // String.hashCode is fixed by the language spec, so every node agrees on a value's slot
+    protected static int valueSlot(String value) {
+        return Math.floorMod(value.hashCode(), HASH_SIZE);
+    }
+
+    // Callers hold mapMutex and have just replaced old with map[key].
+    // Everything derived from the stored values follows from here: reverse index, summaries and watches
+    protected void keyChanged(int key, String old) {
+        String cur = map[key];
+        notifyWatchers(key);
+        // Peers hold a summary of our keys, a new one has to reach them before they can miss it
+        if (old == null && cur != null)
+            summaryChanged();
+        if (old != null && !old.equals(cur))
+            indexQueue.add(escapeValue(old) + "," + key + "," + -versions[key]);
+        if (cur != null && !cur.equals(old))
+            indexQueue.add(escapeValue(cur) + "," + key + "," + versions[key]);
+    }
+
+    // Applies the entries whose slot we own, returns the rest. A malformed entry is skipped
+    // rather than losing the rest of the batch, like storeEntries
+    protected String applyIndex(String data) {
+        StringBuilder rest = new StringBuilder();
+        int skipped = 0;
+        synchronized (mapMutex) {
+            for (String e : data.split(";")) {
+                if (e.isEmpty())
+                    continue;
+                try {
+                    int comma = e.indexOf(',');
+                    if (comma <= 0)
+                        throw new IOException("Malformed index entry " + e);
+                    if (isInRange(valueSlot(unescapeValue(e.substring(0, comma))))) {
+                        indexEntry(e);
+                        continue;
+                    }
+                } catch (IOException ex) {
+                    skipped++;
+                    continue;
+                }
+                if (rest.length() > 0)
+                    rest.append(";");
+                rest.append(e);
+            }
+        }
+        if (skipped > 0)
+            System.out.println("Error : Skipped " + skipped + " malformed index entr" + (skipped == 1 ? "y" : "ies"));
+        return rest.toString();
+    }
+
+    // Callers hold mapMutex. Versions only move forward, so updates arriving out of order are harmless
+    // and a removal keeps a tombstone that a late add for an older version cannot get past
+    protected void indexEntry(String entry) throws IOException {
+        String[] fields = entry.split(",");
+        if (fields.length != 3 || fields[0].isEmpty())
+            throw new IOException("Malformed index entry " + entry);
+
+        String value = unescapeValue(fields[0]);
+        int key;
+        long version;
+        try {
+            key = Integer.parseInt(fields[1]);
+            version = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed index entry " + entry);
+        }
+        if (key < 0 || key >= HASH_SIZE)
+            throw new IOException("Malformed index entry " + entry);
+
+        collectTombstones();
+        TreeMap<Integer, Long> keys = reverseIndex.computeIfAbsent(value, v -> new TreeMap<>());
+        Long cur = keys.get(key);
+        if (cur == null || Math.abs(version) > Math.abs(cur)) {
+            keys.put(key, version);
+            if (version < 0)
+                indexTombstones.add(new Object[] {System.currentTimeMillis() + INDEX_TOMBSTONE_TTL, value, key, version});
+        }
+    }
+
+    // Callers hold mapMutex. Drops the tombstones that are past their ttl and still current,
+    // a value left without keys goes with them. Lazy like expire, the deque is in deadline order
+    protected void collectTombstones() {
+        long now = System.currentTimeMillis();
+        while (!indexTombstones.isEmpty() && (Long) indexTombstones.peek()[0] <= now) {
+            Object[] t = indexTombstones.poll();
+            TreeMap<Integer, Long> keys = reverseIndex.get(t[1]);
+            if (keys == null || !t[3].equals(keys.get(t[2])))
+                continue;
+            keys.remove(t[2]);
+            if (keys.isEmpty())
+                reverseIndex.remove(t[1]);
+        }
+    }
+
+    // Callers hold mapMutex. Appends the index entries of the slots in [from, to], tombstones included
+    protected void serializeIndex(StringBuilder data, int from, int to, boolean clear) {
+        int size = (to - from + HASH_SIZE) % HASH_SIZE + 1;
+        for (Iterator<Map.Entry<String, TreeMap<Integer, Long>>> it = reverseIndex.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, TreeMap<Integer, Long>> e = it.next();
+            if ((valueSlot(e.getKey()) - from + HASH_SIZE) % HASH_SIZE >= size)
+                continue;
+            for (Map.Entry<Integer, Long> k : e.getValue().entrySet()) {
+                if (data.length() > 0)
+                    data.append(";");
+                data.append(INDEX_ENTRY).append(escapeValue(e.getKey())).append(",").append(k.getKey()).append(",").append(k.getValue());
+            }
+            if (clear)
+                it.remove();
+        }
+    }
+
+    // Callers hold mapMutex
+    protected String describeKeys(String value) {
+        StringBuilder keys = new StringBuilder();
+        TreeMap<Integer, Long> entries = reverseIndex.get(value);
+        if (entries != null) {
+            for (Map.Entry<Integer, Long> e : entries.entrySet()) {
+                if (e.getValue() < 0)
+                    continue;
+                if (keys.length() > 0)
+                    keys.append(", ");
+                keys.append(e.getKey());
+            }
+        }
+        if (keys.length() == 0)
+            return "No key holds \"" + value + "\" (index on Name Server " + id + ")";
+        return "Success! \"" + value + "\" is held by key(s) " + keys + " (index on Name Server " + id + ")";
+    }
+
+    // Routes queued index updates in batches, writers only ever enqueue under mapMutex
+    protected class IndexThread extends Thread implements Runnable {
+
+        private final Handler handler = new Handler();
+
+        IndexThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<String> updates = new ArrayList<>();
+            StringBuilder batch = new StringBuilder();
+            while (true) {
+                try {
+                    updates.add(indexQueue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                indexQueue.drainTo(updates);
+
+                int bytes = 0;
+                for (String update : updates) {
+                    int size = utfLength(update, 0, update.length()) + 1;
+                    if (batch.length() > 0 && bytes + size > MAX_BATCH) {
+                        send(batch);
+                        bytes = 0;
+                    }
+                    if (batch.length() > 0)
+                        batch.append(";");
+                    batch.append(update);
+                    bytes += size;
+                }
+                send(batch);
+                updates.clear();
+            }
+        }
+
+        // Goes through the same path as a received update, draining redirects included
+        private void send(StringBuilder batch) {
+            String data = batch.toString();
+            batch.setLength(0);
+            handler.reset(INDEX_UPDATE + " " + encodeData(data), OP_INDEX_UPDATE).run();
+        }
+    }
+
+    /* ******* WATCHES ******* */
+
+    // Marks a watch entry inside range data
+    protected static final String WATCH_ENTRY = "!";
+
+    // Subscribers (ip:port) per watched slot, guarded by mapMutex so they move with the range
+    protected final Map<Integer, Set<String>> watchers = new HashMap<>();
+
+    // Frames queued per subscriber, one that falls this far behind is dropped rather than left to grow
+    protected static final int WATCH_QUEUE = Integer.getInteger("ns.watchQueue", 1024);
+    // Longest a single frame may take to write before the subscriber counts as stuck
+    protected static final int WATCH_WRITE_TIMEOUT = 5000;
+
+    // Current stream per subscriber, every stream still open, and the subscribers dropped since they
+    // last watched, whose events are ignored until they watch again. All guarded by mapMutex
+    protected final Map<String, WatchStream> watchStreams = new HashMap<>();
+    protected final Set<WatchStream> openStreams = new HashSet<>();
+    protected final Set<String> droppedWatchers = new HashSet<>();
+
+    // Callers hold mapMutex. Queues a frame on the subscriber's stream, a null frame closes it once the
+    // frames before it are out. A hello starts a new subscription
+    protected void queueWatch(String subscriber, String frame, boolean hello) {
+        if (hello)
+            droppedWatchers.remove(subscriber);
+        else if (droppedWatchers.contains(subscriber))
+            return;
+
+        WatchStream stream = watchStreams.get(subscriber);
+        if (frame == null) {
+            if (stream != null) {
+                watchStreams.remove(subscriber);
+                stream.finished = true;
+            }
+            return;
+        }
+        if (stream == null) {
+            stream = new WatchStream(subscriber);
+            watchStreams.put(subscriber, stream);
+            openStreams.add(stream);
+            stream.start();
+        }
+        if (!stream.frames.offer(frame))
+            dropWatcher(stream, "it fell " + WATCH_QUEUE + " events behind");
+    }
+
+    // Callers hold mapMutex. A subscriber that can't keep up or can't be reached loses all its watches
+    // here, and is told so, rather than holding up or growing without bound. It has to watch again
+    protected void dropWatcher(WatchStream stream, String reason) {
+        if (stream.dropped != null)
+            return;
+        String subscriber = stream.subscriber;
+        if (watchStreams.get(subscriber) == stream) {
+            watchStreams.remove(subscriber);
+            droppedWatchers.add(subscriber);
+            watchers.values().removeIf(subscribers -> subscribers.remove(subscriber) && subscribers.isEmpty());
+        }
+        System.out.println("Error : Watcher " + subscriber + " dropped, " + reason);
+        stream.abort(WATCH_DROPPED + " " + id + " " + reason);
+    }
+
+    // Callers hold mapMutex. watch_event <key> <version> <owner> <value, - once deleted>
+    protected void notifyWatchers(int key) {
+        Set<String> subscribers = watchers.get(key);
+        if (subscribers == null)
+            return;
+        String event = WATCH_EVENT + " " + key + " " + versions[key] + " " + id + " " + (map[key] == null ? NO_TRACE : map[key]);
+        for (String subscriber : subscribers)
+            queueWatch(subscriber, event, false);
+    }
+
+    // Callers hold mapMutex. The confirmation goes first, then the current values, then changes as they happen
+    protected void addWatch(String subscriber, int from, int to, String reply) {
+        queueWatch(subscriber, reply, true);
+        for (int i = from; ; i = (i + 1) % HASH_SIZE) {
+            watchers.computeIfAbsent(i, k -> new LinkedHashSet<>()).add(subscriber);
+            expire(i);
+            if (map[i] != null)
+                queueWatch(subscriber, WATCH_EVENT + " " + i + " " + versions[i] + " " + id + " " + map[i], false);
+            if (i == to)
+                break;
+        }
+    }
+
+    // Callers hold mapMutex
+    protected void removeWatch(String subscriber, int from, int to, String reply) {
+        for (int i = from; ; i = (i + 1) % HASH_SIZE) {
+            Set<String> subscribers = watchers.get(i);
+            if (subscribers != null && subscribers.remove(subscriber) && subscribers.isEmpty())
+                watchers.remove(i);
+            if (i == to)
+                break;
+        }
+        queueWatch(subscriber, reply, false);
+        if (!isWatching(subscriber))
+            queueWatch(subscriber, null, false);
+    }
+
+    // Callers hold mapMutex
+    protected boolean isWatching(String subscriber) {
+        for (Set<String> subscribers : watchers.values()) {
+            if (subscribers.contains(subscriber))
+                return true;
+        }
+        return false;
+    }
+
+    // Callers hold mapMutex. Appends the watches on [from, to] as one "!ip:port,from,to" per unbroken run
+    protected void serializeWatches(StringBuilder data, int from, int to, boolean clear) {
+        int size = (to - from + HASH_SIZE) % HASH_SIZE + 1;
+        Map<String, Integer> runs = new LinkedHashMap<>();
+        Set<String> moved = new LinkedHashSet<>();
+        for (int n = 0; n <= size; n++) {
+            int i = (from + n) % HASH_SIZE;
+            Set<String> subscribers = n < size ? watchers.get(i) : null;
+
+            // Close the runs of subscribers not watching this slot
+            for (Iterator<Map.Entry<String, Integer>> it = runs.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Integer> run = it.next();
+                if (subscribers != null && subscribers.contains(run.getKey()))
+                    continue;
+                if (data.length() > 0)
+                    data.append(";");
+                data.append(WATCH_ENTRY).append(run.getKey()).append(",").append(run.getValue())
+                        .append(",").append((i - 1 + HASH_SIZE) % HASH_SIZE);
+                it.remove();
+            }
+            if (subscribers == null)
+                continue;
+            for (String subscriber : subscribers)
+                runs.putIfAbsent(subscriber, i);
+            if (clear) {
+                moved.addAll(subscribers);
+                watchers.remove(i);
+            }
+        }
+
+        // Streams of subscribers with nothing left here are closed, the new owner opens its own
+        for (String subscriber : moved) {
+            if (!isWatching(subscriber))
+                queueWatch(subscriber, null, false);
+        }
+    }
+
+    // Callers hold mapMutex. Inverse of serializeWatches, tells the subscriber who serves the keys now
+    protected void watchEntry(String entry) throws IOException {
+        String[] fields = entry.split(",");
+        if (fields.length != 3)
+            throw new IOException("Malformed watch entry " + entry);
+
+        int from;
+        int to;
+        try {
+            from = Integer.parseInt(fields[1]);
+            to = Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed watch entry " + entry);
+        }
+
+        for (int i = from; ; i = (i + 1) % HASH_SIZE) {
+            watchers.computeIfAbsent(i, k -> new LinkedHashSet<>()).add(fields[0]);
+            if (i == to)
+                break;
+        }
+        queueWatch(fields[0], WATCH_MOVED + " " + from + " " + to + " " + id, true);
+    }
+
+    // Streams events to one subscriber over a persistent connection, in the order they were queued
+    protected class WatchStream extends Thread implements Runnable {
+
+        final String subscriber;
+        final BlockingQueue<String> frames = new ArrayBlockingQueue<>(WATCH_QUEUE);
+        // When the frame being written started, 0 between frames. Watched by the WatchThread
+        volatile long writing;
+        // Set once the subscriber watches nothing here any more, the stream closes when the queue runs dry
+        volatile boolean finished;
+        // Notice for a dropped subscriber, sent over a connection of its own since the stream may be stuck
+        private volatile String dropped;
+        private volatile Socket socket;
+
+        WatchStream(String subscriber) {
+            this.subscriber = subscriber;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int colon = subscriber.lastIndexOf(':');
+            String host = subscriber.substring(0, colon);
+            try {
+                int port = Integer.parseInt(subscriber.substring(colon + 1));
+                try {
+                    while (dropped == null) {
+                        String frame = frames.poll(WATCH_WRITE_TIMEOUT / 5, TimeUnit.MILLISECONDS);
+                        if (frame == null) {
+                            if (finished && frames.isEmpty())
+                                break;
+                            continue;
+                        }
+                        if (socket == null) {
+                            Socket s = new Socket();
+                            socket = s;
+                            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                        }
+                        writing = System.currentTimeMillis();
+                        framesSent.incrementAndGet();
+                        charsSent.addAndGet(frame.length());
+                        writeFrame(socket.getOutputStream(), frame);
+                        writing = 0;
+                    }
+                } catch (IOException e) {
+                    if (dropped == null) {
+                        synchronized (mapMutex) {
+                            dropWatcher(this, "it is unreachable");
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Shutting down
+                }
+                close();
+                if (dropped != null)
+                    trySend(dropped, host, port);
+            } catch (NumberFormatException e) {
+                System.out.println("Error : Malformed watcher " + subscriber);
+            }
+            synchronized (mapMutex) {
+                openStreams.remove(this);
+                if (watchStreams.get(subscriber) == this)
+                    watchStreams.remove(subscriber);
+            }
+        }
+
+        // Closing the socket is what unblocks a stuck write
+        void abort(String notice) {
+            dropped = notice;
+            frames.clear();
+            close();
+        }
+
+        private void close() {
+            Socket s = socket;
+            if (s == null)
+                return;
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    // Drops subscribers stuck on a write, a blocking socket write has no timeout of its own
+    protected class WatchThread extends Thread implements Runnable {
+
+        WatchThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(WATCH_WRITE_TIMEOUT / 5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                synchronized (mapMutex) {
+                    for (WatchStream stream : new ArrayList<>(openStreams)) {
+                        long writing = stream.writing;
+                        if (writing != 0 && now - writing > WATCH_WRITE_TIMEOUT)
+                            dropWatcher(stream, "a write took over " + WATCH_WRITE_TIMEOUT + " ms");
+                    }
+                }
+            }
+        }
+    }
+
+    /* ******* KEY SUMMARIES ******* */
+
+    // With only HASH_SIZE keys an exact bitmap is smaller than a Bloom filter and never gives a false positive.
+    // Owners push theirs at least once per refresh, older summaries are not trusted. A write that creates
+    // a key is only acknowledged once every live peer has been told, so no one can rule out a key a client saw
+    // stored. Suspected peers are not waited for, they drop what they hold once they hear of it
+    protected static final int SUMMARY_REFRESH = 1000;
+    protected static final int SUMMARY_TTL = 3 * SUMMARY_REFRESH;
+    // Pause before a push that missed a live peer is tried again
+    protected static final int SUMMARY_RETRY = 100;
+    protected static final boolean SUMMARIES = Boolean.parseBoolean(System.getProperty("ns.summaries", "true"));
+
+    protected static class Summary {
+        final int start;
+        final int end;
+        final BitSet keys;
+        final long received = System.currentTimeMillis();
+
+        Summary(int start, int end, BitSet keys) {
+            this.start = start;
+            this.end = end;
+            this.keys = keys;
+        }
+
+        boolean covers(int key) {
+            return (key - start + HASH_SIZE) % HASH_SIZE <= (end - start + HASH_SIZE) % HASH_SIZE;
+        }
+    }
+
+    // Latest summary from each member, keyed by id
+    protected final Map<Integer, Summary> summaries = new HashMap<>();
+    protected final Object summaryMutex = new Object();
+    private boolean summaryDirty;
+    // Changes made and changes announced, writers wait for the second to catch up with the first
+    private long summarySeq;
+    private long summaryPushed;
+    protected final AtomicLong summaryMisses = new AtomicLong();
+
+    // A write's reply held until the summary announcing its key is out, so no worker waits on the push
+    protected static class HeldReply {
+        final long seq;
+        final long deadline;
+        final String message;
+        final String ip;
+        final int port;
+
+        HeldReply(long seq, long deadline, String message, String ip, int port) {
+            this.seq = seq;
+            this.deadline = deadline;
+            this.message = message;
+            this.ip = ip;
+            this.port = port;
+        }
+    }
+
+    // In seq order, guarded by summaryMutex
+    private final ArrayDeque<HeldReply> heldReplies = new ArrayDeque<>();
+
+    protected void summaryChanged() {
+        synchronized (summaryMutex) {
+            summaryDirty = true;
+            summarySeq++;
+            summaryMutex.notifyAll();
+        }
+    }
+
+    // Sends a write's reply once the keys created so far are announced, at once if nothing is pending. The
+    // SummaryThread sends held ones as pushes land, or once any summary a peer still holds from us has gone stale
+    protected void replyAfterSummary(String message, String replyIp, int replyPort) throws IOException {
+        if (SUMMARIES) {
+            synchronized (summaryMutex) {
+                if (summaryPushed < summarySeq) {
+                    heldReplies.add(new HeldReply(summarySeq, System.currentTimeMillis() + SUMMARY_TTL + GOSSIP_TIMEOUT,
+                            message, replyIp, replyPort));
+                    return;
+                }
+            }
+        }
+        sendMessage(message, replyIp, replyPort);
+    }
+
+    // Replies whose summary is out or whose wait is over go out on the fan out pool
+    protected void releaseReplies() {
+        List<HeldReply> due = new ArrayList<>();
+        synchronized (summaryMutex) {
+            long now = System.currentTimeMillis();
+            while (!heldReplies.isEmpty()
+                    && (heldReplies.peek().seq <= summaryPushed || heldReplies.peek().deadline <= now))
+                due.add(heldReplies.poll());
+        }
+        for (HeldReply r : due) {
+            fanOut.execute(() -> {
+                try {
+                    sendMessage(r.message, r.ip, r.port);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    // Blocking form of replyAfterSummary for the console and for range moves, which are not on the worker pool's
+    // hot path. Returns at once unless a key was created or the range changed since the last push
+    protected void awaitSummary() {
+        if (!SUMMARIES)
+            return;
+        synchronized (summaryMutex) {
+            long target = summarySeq;
+            long deadline = System.currentTimeMillis() + SUMMARY_TTL + GOSSIP_TIMEOUT;
+            try {
+                while (summaryPushed < target && System.currentTimeMillis() < deadline)
+                    summaryMutex.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                // Answer anyway
+            }
+        }
+    }
+
+    // Applied by the listener itself, so it is in place before any request accepted after it
+    protected void storeSummary(String[] args) {
+        if (args.length != 5) {
+            System.out.println("Error : Summary expects an id, a range and a key bitmap");
+            return;
+        }
+
+        try {
+            int memberId = Integer.parseInt(args[1]);
+            Summary summary = new Summary(Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                    BitSet.valueOf(Base64.getDecoder().decode(args[4])));
+            synchronized (summaryMutex) {
+                summaries.put(memberId, summary);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error : Malformed summary.");
+        }
+    }
+
+    // Id of the member whose fresh summary rules the key out, or -1 if the key has to be asked for.
+    // Summaries can overlap while a range moves, every one of them has to agree. Only members we know to be
+    // alive count, anyone else may no longer be pushing to us
+    protected int summaryMiss(int key) {
+        if (!SUMMARIES)
+            return -1;
+        Set<Integer> alive = new HashSet<>();
+        synchronized (membersMutex) {
+            for (Map.Entry<Integer, Member> e : members.entrySet()) {
+                if (e.getValue().state == ALIVE)
+                    alive.add(e.getKey());
+            }
+        }
+        int owner = -1;
+        long now = System.currentTimeMillis();
+        synchronized (summaryMutex) {
+            for (Map.Entry<Integer, Summary> e : summaries.entrySet()) {
+                Summary summary = e.getValue();
+                if (now - summary.received > SUMMARY_TTL || !summary.covers(key))
+                    continue;
+                if (!alive.contains(e.getKey()))
+                    return -1;
+                if (summary.keys.get(key))
+                    return -1;
+                owner = e.getKey();
+            }
+        }
+        if (owner >= 0)
+            summaryMisses.incrementAndGet();
+        return owner;
+    }
+
+    // A write we pass on may create the key before its owner's next summary gets here
+    protected void sawWrite(int key) {
+        synchronized (summaryMutex) {
+            for (Summary summary : summaries.values()) {
+                if (summary.covers(key))
+                    summary.keys.set(key);
+            }
+        }
+    }
+
+    protected class SummaryThread extends Thread implements Runnable {
+
+        SummaryThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            boolean retry = false;
+            while (SUMMARIES) {
+                long seq;
+                synchronized (summaryMutex) {
+                    try {
+                        if (retry)
+                            summaryMutex.wait(SUMMARY_RETRY);
+                        else if (!summaryDirty)
+                            summaryMutex.wait(SUMMARY_REFRESH);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    summaryDirty = false;
+                    seq = summarySeq;
+                }
+                releaseReplies();
+                if (!registered || draining || endIndex < 0) {
+                    pushed(seq);
+                    continue;
+                }
+
+                BitSet keys = new BitSet(HASH_SIZE);
+                int start;
+                int end;
+                synchronized (mapMutex) {
+                    start = startIndex;
+                    end = endIndex;
+                    for (int i = start; ; i = (i + 1) % HASH_SIZE) {
+                        if (map[i] != null)
+                            keys.set(i);
+                        if (i == end)
+                            break;
+                    }
+                }
+                String message = SUMMARY + " " + id + " " + start + " " + end + " "
+                        + Base64.getEncoder().encodeToString(keys.toByteArray());
+
+                List<Member> peers = new ArrayList<>();
+                List<Member> suspects = new ArrayList<>();
+                synchronized (membersMutex) {
+                    for (Map.Entry<Integer, Member> e : members.entrySet()) {
+                        if (e.getKey() == id)
+                            continue;
+                        if (e.getValue().state == ALIVE)
+                            peers.add(e.getValue());
+                        else if (e.getValue().state == SUSPECT)
+                            suspects.add(e.getValue());
+                    }
+                }
+                boolean reached = true;
+                for (Member m : peers)
+                    reached &= trySend(message, m.ip, m.port);
+                // Best effort, a suspect drops our summaries once it hears it is suspected, see mergeDigest
+                for (Member m : suspects)
+                    trySend(message, m.ip, m.port);
+                // Writers keep waiting until every alive peer has it, or a peer that missed it is suspected
+                retry = !reached;
+                if (reached)
+                    pushed(seq);
+            }
+        }
+
+        private void pushed(long seq) {
+            synchronized (summaryMutex) {
+                summaryPushed = seq;
+                summaryMutex.notifyAll();
+            }
+            releaseReplies();
+        }
+    }
+
+    /* ******* OUTBOUND COALESCING ******* */
+
+    // Sends in flight per neighbour before forwards start queueing, and coalescing, behind them
+    protected static final int OUTBOX_STREAMS = Integer.getInteger("ns.outboxStreams", 4);
+    // Forwards queued per neighbour, past this a client request is answered busy rather than held
+    protected static final int OUTBOX_QUEUE = Integer.getInteger("ns.outboxQueue", 4096);
+    // Frames a posting thread drains before it leaves the rest to a flusher and goes back to its own queue
+    protected static final int OUTBOX_DRAIN = Integer.getInteger("ns.outboxDrain", 8);
+    protected static final boolean COALESCE = Boolean.parseBoolean(System.getProperty("ns.coalesce", "true"));
+
+    // One per neighbour we forward to, keyed by ip:port
+    protected final Map<String, Outbox> outboxes = new HashMap<>();
+    protected final AtomicLong coalesced = new AtomicLong();
+    protected final AtomicLong batches = new AtomicLong();
+
+    protected Outbox outbox(String ip, int port) {
+        synchronized (outboxes) {
+            return outboxes.computeIfAbsent(ip + ":" + port, k -> new Outbox(ip, port));
+        }
+    }
+
+    // No timer and no fixed batch size: a forward goes out at once while a stream is free, so light
+    // load sees no added latency. Under heavy load forwards pile up behind busy streams, and each
+    // stream that finishes takes everything pending as one frame, so batches grow with the load
+    protected class Outbox {
+        private final String ip;
+        private final int port;
+        private final ArrayDeque<String> pending = new ArrayDeque<>();
+        private int sending;
+
+        Outbox(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+        }
+
+        // The calling thread sends, its own message first and then up to OUTBOX_DRAIN frames of whatever
+        // queued up meanwhile. Only a queued message is copied, a free stream sends the caller's builder as is
+        void post(CharSequence message) throws IOException {
+            boolean full;
+            synchronized (this) {
+                full = sending >= OUTBOX_STREAMS;
+                if (full && pending.size() < OUTBOX_QUEUE) {
+                    pending.add(message.toString());
+                    return;
+                }
+                if (!full)
+                    sending++;
+            }
+
+            if (full) {
+                overflow(message.toString());
+                return;
+            }
+            try {
+                sendMessage(message, ip, port, FORWARD_TIME);
+            } catch (IOException e) {
+                failForward(message.toString(), e);
+            }
+            drain(OUTBOX_DRAIN);
+        }
+
+        // A client gets a busy reply, ring maintenance can't be dropped so its caller sends it unbatched
+        private void overflow(String message) throws IOException {
+            int op = opcode(message);
+            if (op >= 0 && replyIndex(op) >= 0)
+                failForward(message, new IOException(OUTBOX_QUEUE + " forwards already queued for " + ip + ":" + port));
+            else
+                sendMessage(message, ip, port, FORWARD_TIME);
+        }
+
+        // Callers hold one of the streams and give it up here, or hand it to a flusher once limit frames are out
+        private void drain(int limit) {
+            for (int n = 0; ; n++) {
+                List<String> batch = new ArrayList<>();
+                StringBuilder out = new StringBuilder(BATCH);
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        sending--;
+                        return;
+                    }
+                    if (n == limit) {
+                        Thread flusher = new Thread(() -> drain(Integer.MAX_VALUE));
+                        flusher.setDaemon(true);
+                        flusher.start();
+                        return;
+                    }
+                    int bytes = BATCH.length();
+                    while (!pending.isEmpty()) {
+                        int size = utfLength(pending.peek(), 0, pending.peek().length()) + 1;
+                        if (!batch.isEmpty() && bytes + size > MAX_BATCH)
+                            break;
+                        String m = pending.poll();
+                        out.append(batch.isEmpty() ? ' ' : '\n').append(m);
+                        batch.add(m);
+                        bytes += size;
+                    }
+                }
+
+                String frame;
+                if (batch.size() == 1) {
+                    frame = batch.get(0);
+                } else {
+                    frame = out.toString();
+                    coalesced.addAndGet(batch.size());
+                    batches.incrementAndGet();
+                }
+                try {
+                    sendMessage(frame, ip, port, FORWARD_TIME);
+                } catch (IOException e) {
+                    for (String m : batch)
+                        failForward(m, e);
+                }
+            }
+        }
+    }
+
+    // A queued forward that could not be sent is failed the way its handler would have
+    protected void failForward(String message, IOException cause) {
+        int op = opcode(message);
+        if (op >= 0 && replyIndex(op) >= 0)
+            new Handler().reset(message, op).failRequest(cause);
+        else
+            cause.printStackTrace();
+    }
+
+    /* ******* LOOKUP COALESCING ******* */
+
+    // A key forwarded twice within this window is hot, further lookups for it share one request
+    protected static final int HOT_WINDOW = 50;
+    protected static final int FLIGHT_TIMEOUT = 5000;
+    protected static final int LISTEN_BACKLOG = 1024;
+    // Threads answering the waiters of finished flights
+    protected static final int FAN_OUT_THREADS = Integer.getInteger("ns.fanOutThreads", 16);
+
+    protected final ExecutorService fanOut = Executors.newFixedThreadPool(FAN_OUT_THREADS, r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    });
+
+    protected static class Waiter {
+        final String trace;
+        final String ip;
+        final int port;
+        final boolean shared;
+
+        Waiter(String trace, String ip, int port, boolean shared) {
+            this.trace = trace;
+            this.ip = ip;
+            this.port = port;
+            this.shared = shared;
+        }
+    }
+
+    protected static class Flight {
+        final long started;
+        final List<Waiter> waiters = new ArrayList<>();
+
+        Flight(long started) {
+            this.started = started;
+        }
+    }
+
+    // Fans a flight's answer out to its waiters. Each send gets a thread of the pool, a serial fan-out
+    // would cost every waiter the send delay of all before it
+    protected void answerFlight(Flight flight, int key, String tail, String value, long version, int owner) {
+        for (Waiter w : flight.waiters) {
+            fanOut.execute(() -> {
+                try {
+                    answerLookup(w, key, w.trace + tail, value, version, owner);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    protected void failFlight(Flight flight, int key, String tail, String reason) {
+        for (Waiter w : flight.waiters) {
+            fanOut.execute(() -> {
+                try {
+                    sendMessage(busyMessage(w, key, w.trace + tail, reason), w.ip, w.port);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    // Answers busy for flights whose result never came back and that no later lookup retried,
+    // their waiters would otherwise hear nothing at all
+    protected class FlightReaperThread extends Thread implements Runnable {
+
+        FlightReaperThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(FLIGHT_TIMEOUT / 5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                Map<Integer, Flight> expired = new HashMap<>();
+                synchronized (flightMutex) {
+                    long now = System.currentTimeMillis();
+                    for (Iterator<Map.Entry<Integer, Flight>> it = flights.entrySet().iterator(); it.hasNext(); ) {
+                        Map.Entry<Integer, Flight> e = it.next();
+                        if (now - e.getValue().started >= FLIGHT_TIMEOUT) {
+                            expired.put(e.getKey(), e.getValue());
+                            it.remove();
+                        }
+                    }
+                }
+                for (Map.Entry<Integer, Flight> e : expired.entrySet())
+                    failFlight(e.getValue(), e.getKey(), "",
+                            "No answer from the owner of key " + e.getKey() + " within " + FLIGHT_TIMEOUT + " ms");
+            }
+        }
+    }
+
+    protected void answerLookup(Waiter w, int key, String trace, String value, long version, int owner)
+            throws IOException {
+        StringBuilder out = scratch();
+        if (w.shared) {
+            out.append(LOOKUP_RESULT).append(' ').append(key).append(' ').append(trace).append(' ');
+            if (value == null)
+                out.append("0 - 0");
+            else
+                out.append("1 ").append(value).append(' ').append(version);
+            out.append(' ').append(owner);
+        } else {
+            parseTrace(out.append(PRINT).append(' '), trace, true);
+            if (value == null)
+                out.append("Key not found");
+            else
+                out.append("Success! Found: \"").append(value).append("\" (version ").append(version)
+                        .append(") on Name Server ").append(owner);
+        }
+        sendMessage(out, w.ip, w.port);
+    }
+
+    /* ******* ADMISSION CONTROL ******* */
+
+    // Tunable with -D on the java command line, a rate of 0 means unlimited
+    protected static final int WORKERS = Integer.getInteger("ns.workers", 32);
+    protected static final int QUEUE_SIZE = Integer.getInteger("ns.queue", 512);
+    protected static final int CLIENT_RATE = Integer.getInteger("ns.clientRate", 1000);
+    protected static final int COMMAND_RATE = Integer.getInteger("ns.commandRate", 0);
+    protected static final int MAX_CLIENTS = 4096;
+
+    // Client requests wait here for a worker, ring maintenance bypasses it
+    protected final BlockingQueue<String> clientQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    protected final BlockingQueue<String> busyQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    // Per command limits, looked up once rather than per request
+    protected static final int[] COMMAND_RATES = new int[COMMANDS.length];
+
+    static {
+        for (int op = 0; op < COMMANDS.length; op++)
+            COMMAND_RATES[op] = Integer.getInteger("ns.rate." + COMMANDS[op], COMMAND_RATE);
+    }
+    protected final AtomicLong admitted = new AtomicLong();
+    // Outgoing traffic, reported by status
+    protected final AtomicLong framesSent = new AtomicLong();
+    protected final AtomicLong charsSent = new AtomicLong();
+    protected final AtomicLong rejected = new AtomicLong();
+
+    // Least recently seen clients are forgotten first
+    protected final Map<String, TokenBucket> clientBuckets = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+    protected final TokenBucket[] commandBuckets = new TokenBucket[COMMANDS.length];
+    protected final Object admissionMutex = new Object();
+
+    protected static class TokenBucket {
+        private final double rate;
+        private double tokens;
+        private long last;
+
+        // Allows a burst of one second's worth of requests
+        TokenBucket(double rate) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.last = System.nanoTime();
+        }
+
+        boolean tryTake() {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+            last = now;
+            if (tokens < 1)
+                return false;
+            tokens--;
+            return true;
+        }
+    }
+
+    // Position of the trace in a client request, the reply address follows it. -1 for everything else
+    protected static int replyIndex(int op) {
+        switch (op) {
+            case OP_LOOKUP:
+            case OP_SHARED_LOOKUP:
+            case OP_DELETE:
+                return 2;
+            case OP_INSERT:
+            case OP_REVERSE_LOOKUP:
+            case OP_WATCH:
+            case OP_UNWATCH:
+                return 3;
+            case OP_PUT:
+            case OP_PUT_IF_ABSENT:
+            case OP_REPLACE:
+            case OP_CAS:
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    // Requests are charged where they enter the ring, forwarded hops were already admitted
+    protected boolean admit(int op, String message) {
+        int trace = tokenStart(message, replyIndex(op));
+        if (trace == -1 || !message.startsWith(NO_TRACE + " ", trace))
+            return true;
+
+        synchronized (admissionMutex) {
+            if (CLIENT_RATE > 0) {
+                // Reply ip and port, the only allocation on this path and only where a request enters
+                int end = tokenStart(message, replyIndex(op) + 3);
+                String client = message.substring(trace + 2, end == -1 ? message.length() : end - 1);
+                TokenBucket bucket = clientBuckets.get(client);
+                if (bucket == null) {
+                    bucket = new TokenBucket(CLIENT_RATE);
+                    clientBuckets.put(client, bucket);
+                }
+                if (!bucket.tryTake())
+                    return false;
+            }
+
+            if (COMMAND_RATES[op] > 0) {
+                if (commandBuckets[op] == null)
+                    commandBuckets[op] = new TokenBucket(COMMAND_RATES[op]);
+                if (!commandBuckets[op].tryTake())
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Queues a busy reply, if even that queue is full the requester just never hears back
+    protected void reject(int op, String message) {
+        rejected.incrementAndGet();
+        busyQueue.offer(message);
+    }
+
+    // Tells a requester to try again later, shared lookups get a result their leader fans out
+    protected String busyMessage(Waiter w, int key, String trace, String reason) {
+        if (w.shared)
+            return LOOKUP_RESULT + " " + key + " " + trace + " 2 - 0 " + id;
+        return PRINT + " " + parseTrace(trace, true) + "Busy : " + reason + ", try again later";
+    }
+
+    protected class WorkerThread extends Thread implements Runnable {
+
+        private final Handler handler = new Handler();
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    String message = clientQueue.take();
+                    handler.reset(message, opcode(message)).run();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    protected class BusyThread extends Thread implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    String message = busyQueue.take();
+                    int op = opcode(message);
+                    String[] tokens = tokenize(message);
+                    int at = replyIndex(op);
+                    if (tokens.length < at + 3)
+                        continue;
+                    int key = Integer.parseInt(tokens[1]);
+                    Waiter w = new Waiter(appendTrace(tokens[at]), tokens[at + 1], Integer.parseInt(tokens[at + 2]),
+                            op == OP_SHARED_LOOKUP);
+                    // One attempt only, an unreachable client must not hold up the others
+                    trySend(busyMessage(w, key, w.trace, "Name Server " + id + " is overloaded"), w.ip, w.port);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /* ******* CAPTURE ******* */
+
+    // Capture log: magic, node id, wall-clock start in ms, then per message the micros since the previous one and the frame
+    protected static final int CAPTURE_MAGIC = 0x4e534331;
+    protected static final String CAPTURE_FILE = System.getProperty("ns.capture");
+    // Captures are only ever written here, under a bare file name, since the admin API lets any peer start one
+    protected static final String CAPTURE_DIR = System.getProperty("ns.captureDir", "captures");
+    // Messages waiting to be written, past this they are dropped rather than slowing the listener down
+    protected static final int CAPTURE_QUEUE = Integer.getInteger("ns.captureQueue", 65536);
+
+    protected volatile CaptureThread capture;
+    protected final AtomicLong captured = new AtomicLong();
+    protected final AtomicLong captureDropped = new AtomicLong();
+
+    // A null message ends the capture
+    protected static class Captured {
+        final long nanos;
+        final String message;
+
+        Captured(long nanos, String message) {
+            this.nanos = nanos;
+            this.message = message;
+        }
+    }
+
+    // Called by the listener for every message it hands on, so this only ever queues
+    protected void capture(String message) {
+        CaptureThread c = capture;
+        if (c != null && !c.queue.offer(new Captured(System.nanoTime(), message)))
+            captureDropped.incrementAndGet();
+    }
+
+    // Console form: capture <file> | capture off
+    protected void captureCommand(String[] tokens) {
+        if (tokens.length != 2)
+            System.out.println("Error : capture requires a single argument [file] or off.");
+        else if (tokens[1].equals("off"))
+            System.out.println(stopCapture() ? "Capture stopped, " + captured.get() + " message(s) written" : "Not capturing.");
+        else if (startCapture(tokens[1]))
+            System.out.println("Capturing to " + capture.file);
+    }
+
+    // The capture file for a name, or null if the name is not a bare file name and could reach outside CAPTURE_DIR
+    protected static File captureFile(String name) {
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') != -1
+                || name.indexOf('\\') != -1 || name.indexOf(File.separatorChar) != -1 || name.indexOf('\0') != -1)
+            return null;
+        return new File(CAPTURE_DIR, name);
+    }
+
+    protected synchronized boolean startCapture(String name) {
+        if (capture != null) {
+            System.out.println("Error : Already capturing to " + capture.file);
+            return false;
+        }
+        File file = captureFile(name);
+        if (file == null) {
+            System.out.println("Error : Capture file " + name + " must be a bare file name, captures go into " + CAPTURE_DIR);
+            return false;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            capture = new CaptureThread(file);
+        } catch (IOException e) {
+            System.out.println("Error : Could not open capture file " + file);
+            return false;
+        }
+        capture.start();
+        return true;
+    }
+
+    protected synchronized boolean stopCapture() {
+        CaptureThread c = capture;
+        if (c == null)
+            return false;
+        capture = null;
+        // Behind everything already queued, so the log is complete once the thread is done
+        try {
+            c.queue.put(new Captured(0, null));
+            c.join();
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return true;
+    }
+
+    protected class CaptureThread extends Thread implements Runnable {
+
+        final File file;
+        final BlockingQueue<Captured> queue = new ArrayBlockingQueue<>(CAPTURE_QUEUE);
+        private final DataOutputStream out;
+        private long last = System.nanoTime();
+
+        CaptureThread(File file) throws IOException {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(CAPTURE_MAGIC);
+            out.writeInt(id);
+            out.writeLong(System.currentTimeMillis());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Captured> records = new ArrayList<>();
+            try {
+                while (true) {
+                    records.add(queue.take());
+                    queue.drainTo(records);
+
+                    for (Captured record : records) {
+                        if (record.message == null) {
+                            out.close();
+                            return;
+                        }
+                        long micros = Math.max(0, (record.nanos - last) / 1000);
+                        last = record.nanos;
+                        out.writeInt((int) Math.min(Integer.MAX_VALUE, micros));
+                        out.writeUTF(record.message);
+                        captured.incrementAndGet();
+                    }
+                    records.clear();
+                    // Only flushed once we've caught up, a burst goes out in large writes
+                    if (queue.isEmpty())
+                        out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println("Error : Capture to " + file + " stopped, " + e.getMessage());
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                synchronized (NameServer.this) {
+                    if (capture == this)
+                        capture = null;
+                }
+            }
+        }
+    }
+
+    /* ******* ADMIN ******* */
+
+    protected static final int JOIN_TIMEOUT = 30000;
+
+    // A join is done once the range has been transferred in
+    protected boolean awaitRange() {
+        long deadline = System.currentTimeMillis() + JOIN_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (mapMutex) {
+                if (endIndex >= 0)
+                    return true;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    protected static StringBuilder jsonString(StringBuilder out, String s) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                out.append('\\').append(c);
+            else if (c < 0x20)
+                out.append(String.format("\\u%04x", (int) c));
+            else
+                out.append(c);
+        }
+        return out.append('"');
+    }
+
+    protected static void adminError(StringBuilder out, String error) {
+        jsonString(out.append("{\"ok\":false,\"error\":"), error).append('}');
+    }
+
+    protected void statusJson(StringBuilder out) {
+        int keys = 0;
+        int start;
+        int end;
+        synchronized (mapMutex) {
+            start = startIndex;
+            end = endIndex;
+            for (int i = 0; i < HASH_SIZE; i++) {
+                expire(i);
+                if (map[i] != null)
+                    keys++;
+            }
+        }
+
+        out.append("{\"ok\":true,\"id\":").append(id);
+        jsonString(out.append(",\"ip\":"), ip).append(",\"port\":").append(listenPort);
+        out.append(",\"registered\":").append(registered);
+        out.append(",\"draining\":").append(draining);
+        out.append(",\"range\":");
+        if (end < 0)
+            out.append("null");
+        else
+            out.append("{\"start\":").append(start).append(",\"end\":").append(end).append('}');
+        out.append(",\"keys\":").append(keys);
+        out.append(",\"prev\":").append(getPrevId()).append(",\"next\":").append(getNextId());
+        out.append(",\"admitted\":").append(admitted.get()).append(",\"rejected\":").append(rejected.get());
+        out.append(",\"framesSent\":").append(framesSent.get()).append(",\"charsSent\":").append(charsSent.get());
+        out.append(",\"summaryMisses\":").append(summaryMisses.get());
+        out.append(",\"coalesced\":").append(coalesced.get()).append(",\"batches\":").append(batches.get());
+        out.append(",\"captured\":").append(captured.get()).append(",\"captureDropped\":").append(captureDropped.get());
+
+        out.append(",\"members\":[");
+        synchronized (membersMutex) {
+            List<Integer> ids = new ArrayList<>(members.keySet());
+            Collections.sort(ids);
+            for (int n = 0; n < ids.size(); n++) {
+                Member m = members.get(ids.get(n));
+                if (n > 0)
+                    out.append(',');
+                out.append("{\"id\":").append(ids.get(n));
+                jsonString(out.append(",\"ip\":"), m.ip).append(",\"port\":").append(m.port);
+                jsonString(out.append(",\"state\":"), stateName(m.state));
+                if (m.end >= 0)
+                    out.append(",\"start\":").append(m.start).append(",\"end\":").append(m.end);
+                out.append('}');
+            }
+        }
+        out.append("]}");
+    }
+
+    // Structured printMap, limited to [from, to] so a listing can be paged
+    protected void rangeJson(StringBuilder out, int from, int to) {
+        out.append("{\"ok\":true,\"id\":").append(id).append(",\"entries\":[");
+        boolean first = true;
+        long now = System.currentTimeMillis();
+        for (int i = Math.max(0, from); i <= Math.min(HASH_SIZE - 1, to); i++) {
+            synchronized (mapMutex) {
+                expire(i);
+                if (map[i] == null)
+                    continue;
+                if (!first)
+                    out.append(',');
+                first = false;
+                out.append("{\"key\":").append(i);
+                jsonString(out.append(",\"value\":"), map[i]);
+                out.append(",\"version\":").append(versions[i]);
+                out.append(",\"ttlMs\":").append(expiries[i] == 0 ? 0 : Math.max(1, expiries[i] - now)).append('}');
+            }
+        }
+        out.append("]}");
+    }
+
+    /* ******* DRAIN ******* */
+
+    protected static final int HANDOFF_TIMEOUT = 30000;
+
+    protected static boolean isClientCommand(int op) {
+        switch (op) {
+            case OP_LOOKUP:
+            case OP_SHARED_LOOKUP:
+            case OP_INSERT:
+            case OP_DELETE:
+            case OP_PUT:
+            case OP_PUT_IF_ABSENT:
+            case OP_REPLACE:
+            case OP_CAS:
+            case OP_BULK_INSERT:
+            case OP_REGISTER:
+            case OP_REVERSE_LOOKUP:
+            case OP_WATCH:
+            case OP_UNWATCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    protected boolean beginWrite() {
+        synchronized (drainMutex) {
+            if (draining)
+                return false;
+            writesInFlight++;
+            return true;
+        }
+    }
+
+    protected void endWrite() {
+        synchronized (drainMutex) {
+            writesInFlight--;
+            if (writesInFlight == 0)
+                drainMutex.notifyAll();
+        }
+    }
+
+    // Hands our range to the predecessor without a window where requests see missing keys: writes are
+    // held from the start and passed on once it owns the range, reads are served from our copy until then.
+    // Once the range is sent the predecessor may claim it at any point, so we never take it back after that:
+    // if the acknowledgement is late we ask whether it took over, and if it can't say we stay draining
+    protected boolean drain() throws IOException {
+        String prevIp = getPrevIp();
+        int prevPort = getPrevPort();
+        int prevId = getPrevId();
+
+        synchronized (drainMutex) {
+            handoffIp = prevIp;
+            handoffPort = prevPort;
+            handoffAcked = false;
+            drainPending = false;
+            draining = true;
+            try {
+                while (writesInFlight > 0)
+                    drainMutex.wait();
+            } catch (InterruptedException e) {
+                cancelDrain();
+                return false;
+            }
+        }
+
+        // Writes are held from here on, so the copy kept for resends stays in step with the map
+        RangeSnapshot copy;
+        int end;
+        synchronized (mapMutex) {
+            end = endIndex;
+            copy = snapshotRange(startIndex, end, false);
+        }
+        synchronized (handoffs) {
+            handoffs.put(end, copy);
+        }
+
+        // Streamed like a join, so a range of any size gets out
+        try {
+            transferRange(copy, end, EXIT + " " + id + " " + end + " " + getNextIp() + " " + getNextPort() + " "
+                    + getNextId() + " " + ip + " " + listenPort, prevIp, prevPort);
+        } catch (IOException e) {
+            // The predecessor only claims once every part is in, a part that never got there means it can't have
+            System.out.println("Error : " + e.getMessage());
+            synchronized (handoffs) {
+                handoffs.remove(end);
+            }
+            synchronized (drainMutex) {
+                cancelDrain();
+            }
+            return false;
+        }
+
+        boolean acked;
+        synchronized (drainMutex) {
+            long deadline = System.currentTimeMillis() + HANDOFF_TIMEOUT;
+            try {
+                while (!handoffAcked && System.currentTimeMillis() < deadline)
+                    drainMutex.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                // Treated as a timeout
+            }
+            acked = handoffAcked;
+            if (!acked)
+                drainPending = true;
+        }
+
+        if (!acked) {
+            if (!predecessorOwns(prevIp, prevPort, prevId, end))
+                return false;
+            synchronized (drainMutex) {
+                // An acknowledgement that came in meanwhile completes the exit itself
+                if (!drainPending)
+                    return true;
+                drainPending = false;
+            }
+        }
+        depart();
+        return true;
+    }
+
+    // Callers hold drainMutex. Serves the range again, the held writes are handled as if they had just arrived
+    private void cancelDrain() {
+        draining = false;
+        for (String m : heldWrites)
+            new Thread(new Handler().reset(m, opcode(m))).start();
+        heldWrites.clear();
+    }
+
+    // Writes that arrive while draining go to the predecessor, but only once it owns the range: any earlier it
+    // would route them straight back to us. A client request past QUEUE_SIZE held ones is answered busy
+    protected void redirect(String message, int op) throws IOException {
+        synchronized (drainMutex) {
+            if (!handoffAcked && !departed) {
+                if (heldWrites.size() >= QUEUE_SIZE && replyIndex(op) >= 0)
+                    reject(op, message);
+                else
+                    heldWrites.add(message);
+                return;
+            }
+        }
+        sendMessage(message, handoffIp, handoffPort);
+    }
+
+    // Whether the predecessor's own entry in its ring view already covers our range, asked when its
+    // acknowledgement is late
+    protected boolean predecessorOwns(String prevIp, int prevPort, int prevId, int end) {
+        try {
+            Map<Integer, RingNode> view = new TreeMap<>();
+            mergeView(view, fetchView(prevIp, prevPort, view));
+            RingNode node = view.get(prevId);
+            return node != null && node.covers(end);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // The predecessor owns our range: drop our copy, pass the held writes on and leave the ring. The index and
+    // watches went over with the range, the new owner tells each subscriber it moved, so here they are only dropped
+    protected void depart() throws IOException {
+        int start;
+        int end;
+        synchronized (mapMutex) {
+            start = startIndex;
+            end = endIndex;
+            serializeRange(start, end, true);
+            endIndex = -1;
+        }
+        synchronized (handoffs) {
+            handoffs.remove(end);
+        }
+
+        List<String> held;
+        synchronized (drainMutex) {
+            handoffAcked = true;
+            departed = true;
+            held = new ArrayList<>(heldWrites);
+            heldWrites.clear();
+        }
+        for (String m : held)
+            sendMessage(m, handoffIp, handoffPort);
+        registered = false;
+
+        leaveMembership();
+        System.out.println("Successful exit");
+        System.out.println("Key range [" + start + ", " + end + "] handed over to Name Server " + getPrevId());
+    }
+
+    /* ******* EXPIRY ******* */
+
+    // Callers hold mapMutex
+    protected void setExpiry(int key, long ttlSeconds) {
+        setExpiryMillis(key, ttlSeconds > 0 ? ttlSeconds * 1000 : 0);
+    }
+
+    protected void setExpiryMillis(int key, long ttlMillis) {
+        if (ttlMillis <= 0) {
+            expiries[key] = 0;
+            return;
+        }
+        expiries[key] = System.currentTimeMillis() + ttlMillis;
+        expiryQueue.add(new long[] {expiries[key], key});
+        mapMutex.notifyAll();
+    }
+
+    // Lazily drops a key whose lease has run out, callers hold mapMutex
+    protected void expire(int key) {
+        if (expiries[key] != 0 && expiries[key] <= System.currentTimeMillis()) {
+            String old = map[key];
+            map[key] = null;
+            versions[key]++;
+            expiries[key] = 0;
+            keyChanged(key, old);
+        }
+    }
+
+    // Sleeps until the earliest lease runs out, so expired keys are freed without scanning the range
+    protected class ReaperThread extends Thread implements Runnable {
+
+        ReaperThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            synchronized (mapMutex) {
+                while (true) {
+                    try {
+                        long[] head = expiryQueue.peek();
+                        if (head == null) {
+                            mapMutex.wait();
+                            continue;
+                        }
+
+                        long wait = head[0] - System.currentTimeMillis();
+                        if (wait > 0) {
+                            mapMutex.wait(wait);
+                            continue;
+                        }
+
+                        expiryQueue.poll();
+                        int key = (int) head[1];
+
+                        // Skip entries whose key was rewritten, deleted or moved since
+                        if (expiries[key] == head[0])
+                            expire(key);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    protected String parseTrace(String s, boolean checkFirst) {
+        return parseTrace(new StringBuilder(), s, checkFirst).toString();
+    }
+
+    // Appends the trace to a reply being built, walking the ids in place instead of splitting
+    protected StringBuilder parseTrace(StringBuilder ret, String s, boolean checkFirst) {
+        // ret.append("Name Server Trace:\n");
+
+        int from = 0;
+        for (int i = 0; from <= s.length(); i++) {
+            int to = s.indexOf(',', from);
+            if (to == -1)
+                to = s.length();
+
+            if (i == 0) {
+                if (checkFirst)
+                    ret.append("\tChecked Name Server ").append(s, from, to).append("\n");
+            } else {
+                ret.append("\tContacted Name Server ").append(s, from, to).append("\n");
+            }
+            from = to + 1;
+        }
+
+        return ret;
+    }
+
+    // Parses the ids in place, this runs for every forwarded lookup
+    protected static boolean traceContains(String trace, int nodeId) {
+        int from = 0;
+        while (from < trace.length()) {
+            int to = trace.indexOf(',', from);
+            if (to == -1)
+                to = trace.length();
+
+            int value = 0;
+            boolean digits = to > from;
+            for (int i = from; i < to && digits; i++) {
+                char c = trace.charAt(i);
+                digits = c >= '0' && c <= '9';
+                value = value * 10 + (c - '0');
+            }
+            if (digits && value == nodeId)
+                return true;
+            from = to + 1;
+        }
+        return false;
+    }
+
+    protected String appendTrace(String trace) {
+        if (NO_TRACE.equals(trace))
+            return Integer.toString(id);
+        return trace + "," + id;
+    }
+
+    protected boolean isInRange(int key) {
+        // Nothing is ours until the range has been transferred in
+        if (endIndex < 0 || key < 0 || key >= HASH_SIZE)
+            return false;
+        if (startIndex <= endIndex)
+            return (startIndex <= key && key <= endIndex);
+        // Range wraps past the end of the hash space
+        return (key >= startIndex || key <= endIndex);
+    }
+
+    // Whether a client request is for us, its key (or slot) always follows the command. One we can't
+    // read, or whose key is outside the hash space, is left to the handler to reject
+    protected boolean ownsRequest(String request) {
+        int from = request.indexOf(' ') + 1;
+        int to = request.indexOf(' ', from);
+        try {
+            int key = Integer.parseInt(request.substring(from, to < 0 ? request.length() : to));
+            return key < 0 || key >= HASH_SIZE || isInRange(key);
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    protected int rangeSize() {
+        return (endIndex - startIndex + HASH_SIZE) % HASH_SIZE + 1;
+    }
+
+
+    /* ******* ROUTING ******* */
+
+    // Sends towards the owner of key through whichever neighbour is closer on the ring
+    // Client requests give up on a hop sooner than ring maintenance does
+    protected void forward(CharSequence message, int key) throws IOException {
+        forward(message, key, -1);
+    }
+
+    // from is the Name Server the request came from, -1 when it starts here
+    protected void forward(CharSequence message, int key, int from) throws IOException {
+        NameServerStub hop = nextHop(key, from);
+        if (!COALESCE || isBatch(message)) {
+            sendMessage(message, hop.getIp(), hop.getPort(), FORWARD_TIME);
+            return;
+        }
+        outbox(hop.getIp(), hop.getPort()).post(message);
+    }
+
+    // A frame that already carries several lines can't be batched again
+    protected static boolean isBatch(CharSequence message) {
+        for (int i = 0; i < message.length(); i++) {
+            if (message.charAt(i) == '\n')
+                return true;
+        }
+        return false;
+    }
+
+    protected NameServerStub nextHop(int key) {
+        return nextHop(key, -1);
+    }
+
+    // A request keeps going the way it came, two nodes whose views disagree on the shorter way
+    // round would otherwise bounce it between them. Only where it enters the ring is there a choice
+    protected NameServerStub nextHop(int key, int from) {
+        int prevId = getPrevId();
+        int nextId = getNextId();
+        boolean back;
+        if (from != -1 && from == nextId && from != prevId)
+            back = true;
+        else if (from != -1 && from == prevId && from != nextId)
+            back = false;
+        else
+            back = (startIndex - key + HASH_SIZE) % HASH_SIZE < (key - endIndex + HASH_SIZE) % HASH_SIZE;
+
+        // Going backwards only pays off if the predecessor is still around and answering
+        if (back && isLiveMember(prevId) && !isTripped(getPrevIp(), getPrevPort())) {
+            synchronized (prevMutex) {
+                if (prevServer != null && prevServer.getId() != id)
+                    return new NameServerStub(prevServer.getIp(), prevServer.getPort(), prevServer.getId());
+            }
+        }
+        synchronized (nextMutex) {
+            return new NameServerStub(nextServer.getIp(), nextServer.getPort(), nextServer.getId());
+        }
+    }
+
+    protected boolean isLiveMember(int memberId) {
+        synchronized (membersMutex) {
+            Member m = members.get(memberId);
+            return m != null && m.isLive();
+        }
+    }
+
+    /* ******* STUB MUTEX WRAPPER FUNCTIONS ******* */
+
+    protected String getPrevIp() {
+        String ip;
+        synchronized (prevMutex) {
+            if (prevServer == null)
+                return "";
+            ip = prevServer.getIp();
+        }
+        return ip;
+    }
+
+    protected int getPrevPort() {
+        int port;
+        synchronized (prevMutex) {
+            if (prevServer == null)
+                return -1;
+            port = prevServer.getPort();
+        }
+        return port;
+    }
+
+    protected int getPrevId() {
+        int id;
+        synchronized (prevMutex) {
+            if (prevServer == null)
+                return -1;
+            id = prevServer.getId();
+        }
+        return id;
+    }
+
+    protected String getNextIp() {
+        String ip;
+        synchronized (nextMutex) {
+            if (nextServer == null)
+                return "";
+            ip = nextServer.getIp();
+        }
+        return ip;
+    }
+
+    protected int getNextPort() {
+        int port;
+        synchronized (nextMutex) {
+            if (nextServer == null)
+                return -1;
+            port = nextServer.getPort();
+        }
+        return port;
+    }
+
+    protected int getNextId() {
+        int id;
+        synchronized (nextMutex) {
+            if (nextServer == null)
+                return -1;
+            id = nextServer.getId();
+        }
+        return id;
+    }
+
+    protected class NameServerStub {
+
+        private int id;
+        private String ip;
+        private int port;
+
+        NameServerStub(String ip, int port, int id) {
+            this.ip = ip;
+            this.port = port;
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public void setId(int id) {
+            this.id = id;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public String getIp() {
+            return ip;
+        }
+
+        public void setIp(String ip) {
+            this.ip = ip;
+        }
+
+    }
+
+    /* ******* GOSSIP MEMBERSHIP ******* */
+
+    protected static final int GOSSIP_INTERVAL = 1000;
+    protected static final int GOSSIP_TIMEOUT = 500;
+    protected static final int SUSPECT_ROUNDS = 5;
+    // Peers asked to probe a member we could not reach before we suspect it, and how long they get
+    protected static final int PROBE_RELAYS = 3;
+    protected static final int PROBE_TIMEOUT = 2 * GOSSIP_TIMEOUT;
+    // Move range side that merges a range back into its owner without moving any boundary
+    protected static final String MERGE_SIDE = "b";
+
+    // Members some relay reached for us since we last asked, guarded by itself
+    protected final Set<Integer> probeAcks = new HashSet<>();
+
+    protected static final char ALIVE = 'a';
+    protected static final char SUSPECT = 's';
+    protected static final char DEAD = 'd';
+    protected static final char LEFT = 'l';
+
+    protected static class Member {
+        String ip;
+        int port;
+        long incarnation;
+        char state;
+        int suspectRounds;
+        // The member's range as it last gossiped it, -1 until it has one
+        int start = -1;
+        int end = -1;
+        long rangeVersion;
+
+        Member(String ip, int port, long incarnation, char state) {
+            this.ip = ip;
+            this.port = port;
+            this.incarnation = incarnation;
+            this.state = state;
+        }
+
+        boolean isLive() {
+            return state == ALIVE || state == SUSPECT;
+        }
+
+        void setRange(int start, int end, long rangeVersion) {
+            this.start = start;
+            this.end = end;
+            this.rangeVersion = rangeVersion;
+        }
+    }
+
+    // A restarted node must outrank anything gossiped about its previous life
+    protected void joinMembership() {
+        synchronized (membersMutex) {
+            incarnation = System.currentTimeMillis();
+            members.clear();
+            members.put(id, new Member(ip, listenPort, incarnation, ALIVE));
+            bumpRangeVersion();
+        }
+    }
+
+    protected void leaveMembership() {
+        List<Member> peers = new ArrayList<>();
+        String digest;
+        synchronized (membersMutex) {
+            incarnation++;
+            Member left = new Member(ip, listenPort, incarnation, LEFT);
+            bumpRangeVersion();
+            left.setRange(-1, -1, rangeVersion);
+            members.put(id, left);
+            digest = digest();
+            for (Map.Entry<Integer, Member> e : members.entrySet()) {
+                if (e.getKey() != id && e.getValue().isLive())
+                    peers.add(e.getValue());
+            }
+            members.clear();
+        }
+
+        // Tell a few peers directly so the departure spreads without waiting for a round
+        Collections.shuffle(peers);
+        for (int i = 0; i < Math.min(3, peers.size()); i++)
+            trySend(GOSSIP + " " + ip + " " + listenPort + " " + digest, peers.get(i).ip, peers.get(i).port);
+    }
+
+    protected void learnMember(int memberId, String memberIp, int memberPort) {
+        synchronized (membersMutex) {
+            if (members.isEmpty() || memberId == id)
+                return;
+            Member m = members.get(memberId);
+            if (m == null)
+                members.put(memberId, new Member(memberIp, memberPort, 0, ALIVE));
+        }
+    }
+
+    // id:ip:port:incarnation:state:start:end:rangeVersion for every known member
+    protected String digest() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (membersMutex) {
+            publishRange();
+            for (Map.Entry<Integer, Member> e : members.entrySet()) {
+                Member m = e.getValue();
+                if (sb.length() > 0)
+                    sb.append(",");
+                sb.append(e.getKey()).append(":").append(m.ip).append(":").append(m.port)
+                        .append(":").append(m.incarnation).append(":").append(m.state)
+                        .append(":").append(m.start).append(":").append(m.end).append(":").append(m.rangeVersion);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Callers hold membersMutex. Beats any version a dead marker for us was given, see ringView
+    private void bumpRangeVersion() {
+        rangeVersion = Math.max(rangeVersion + 2, System.currentTimeMillis());
+    }
+
+    // Callers hold membersMutex. Our own entry picks up range changes lazily, whatever moved it
+    private void publishRange() {
+        Member self = members.get(id);
+        if (self == null || self.state == LEFT)
+            return;
+        int end = endIndex;
+        int start = end < 0 ? -1 : startIndex;
+        if (start != publishedStart || end != publishedEnd) {
+            publishedStart = start;
+            publishedEnd = end;
+            bumpRangeVersion();
+        }
+        self.setRange(start, end, rangeVersion);
+    }
+
+    protected void mergeDigest(String digest) {
+        List<Integer> failed = new ArrayList<>();
+        List<Integer> revived = new ArrayList<>();
+        boolean refuted = false;
+        synchronized (membersMutex) {
+            if (members.isEmpty())
+                return;
+
+            for (String entry : digest.split(",")) {
+                String[] fields = entry.split(":");
+                if (fields.length != 8 || fields[4].length() != 1)
+                    continue;
+
+                int memberId;
+                int port;
+                long inc;
+                int start;
+                int end;
+                long rv;
+                try {
+                    memberId = Integer.parseInt(fields[0]);
+                    port = Integer.parseInt(fields[2]);
+                    inc = Long.parseLong(fields[3]);
+                    start = Integer.parseInt(fields[5]);
+                    end = Integer.parseInt(fields[6]);
+                    rv = Long.parseLong(fields[7]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                char state = fields[4].charAt(0);
+
+                // Refute rumours about ourselves
+                if (memberId == id) {
+                    if (state != ALIVE && inc >= incarnation) {
+                        refuted = true;
+                        incarnation = inc + 1;
+                        members.put(id, new Member(ip, listenPort, incarnation, ALIVE));
+                        bumpRangeVersion();
+                        publishRange();
+                    }
+                    continue;
+                }
+
+                Member cur = members.get(memberId);
+                if (cur == null || inc > cur.incarnation
+                        || (inc == cur.incarnation && rank(state) > rank(cur.state))) {
+                    boolean wasLive = cur == null || cur.isLive();
+                    boolean wasDead = cur != null && cur.state == DEAD;
+                    Member next = new Member(fields[1], port, inc, state);
+                    if (cur != null)
+                        next.setRange(cur.start, cur.end, cur.rangeVersion);
+                    members.put(memberId, next);
+                    cur = next;
+                    if (wasLive && state == DEAD)
+                        failed.add(memberId);
+                    else if (wasDead && next.isLive())
+                        revived.add(memberId);
+                }
+                // Ranges move without the incarnation changing, they carry their own version
+                if (rv > cur.rangeVersion)
+                    cur.setRange(start, end, rv);
+            }
+        }
+
+        // Owners stopped waiting for us to take their summaries while we were suspected, so none can be trusted
+        if (refuted) {
+            synchronized (summaryMutex) {
+                summaries.clear();
+            }
+        }
+        for (int memberId : failed)
+            repairRing(memberId);
+        for (int memberId : revived)
+            handBack(memberId);
+    }
+
+    // Later states win when incarnations are equal
+    private static int rank(char state) {
+        switch (state) {
+            case SUSPECT:
+                return 1;
+            case DEAD:
+            case LEFT:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    // A crashed successor is skipped over, its range joins ours
+    protected void repairRing(int deadId) {
+        if (deadId != getNextId())
+            return;
+
+        int newNextId = -1;
+        Member newNext = null;
+        synchronized (membersMutex) {
+            int best = HASH_SIZE;
+            for (Map.Entry<Integer, Member> e : members.entrySet()) {
+                if (e.getKey() == id || !e.getValue().isLive())
+                    continue;
+                int dist = (e.getKey() - id + HASH_SIZE) % HASH_SIZE;
+                if (dist < best) {
+                    best = dist;
+                    newNextId = e.getKey();
+                    newNext = e.getValue();
+                }
+            }
+        }
+
+        String newIp = newNext == null ? ip : newNext.ip;
+        int newPort = newNext == null ? listenPort : newNext.port;
+        if (newNext == null)
+            newNextId = id;
+
+        synchronized (nextMutex) {
+            nextServer.setIp(newIp);
+            nextServer.setPort(newPort);
+            nextServer.setId(newNextId);
+        }
+        // Corrected by the next load report if the new successor's range no longer starts at its id
+        endIndex = newNextId - 1;
+        if (endIndex == -1)
+            endIndex = HASH_SIZE - 1;
+
+        System.out.println();
+        System.out.println("Name Server " + deadId + " failed, now covering the range " + startIndex + " to " + endIndex);
+        System.out.print(prompt);
+
+        try {
+            setPrev(newIp, newPort, ip, listenPort, id);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // A member we took for dead refuted it, so it never stopped serving. If we took its range over, the
+    // range goes back to it along with what was written here meanwhile, and the ring is relinked around it
+    protected void handBack(int memberId) {
+        String memberIp;
+        int memberPort;
+        int start;
+        synchronized (membersMutex) {
+            Member m = members.get(memberId);
+            if (m == null || !m.isLive())
+                return;
+            memberIp = m.ip;
+            memberPort = m.port;
+            start = m.start >= 0 ? m.start : memberId;
+        }
+
+        String oldNextIp;
+        int oldNextPort;
+        int oldNextId;
+        int end;
+        String data;
+        synchronized (mapMutex) {
+            // Only the node that absorbed the range covers its start without owning it from our own start
+            if (draining || endIndex < 0 || start == startIndex || !isInRange(start))
+                return;
+            end = endIndex;
+            endIndex = (start - 1 + HASH_SIZE) % HASH_SIZE;
+            synchronized (nextMutex) {
+                oldNextIp = nextServer.getIp();
+                oldNextPort = nextServer.getPort();
+                oldNextId = nextServer.getId();
+                nextServer.setIp(memberIp);
+                nextServer.setPort(memberPort);
+                nextServer.setId(memberId);
+            }
+            data = drainRange(start, end);
+        }
+
+        System.out.println();
+        System.out.println("Name Server " + memberId + " is alive after all, handed the range " + start + " to " + end + " back");
+        System.out.print(prompt);
+
+        try {
+            setPrev(memberIp, memberPort, ip, listenPort, id);
+            if (oldNextId != memberId)
+                setPrev(oldNextIp, oldNextPort, memberIp, memberPort, memberId);
+            // Merged rather than stored, the member kept taking writes for the range the whole time
+            for (String piece : splitBatch(data))
+                sendMessage(MOVE_RANGE + " " + MERGE_SIDE + " " + start + " " + encodeData(piece), memberIp, memberPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error : Could not hand the range back to Name Server " + memberId);
+        }
+    }
+
+    protected static String stateName(char state) {
+        switch (state) {
+            case ALIVE:
+                return "alive";
+            case SUSPECT:
+                return "suspect";
+            case DEAD:
+                return "dead";
+            default:
+                return "left";
+        }
+    }
+
+    protected void printMembers() {
+        synchronized (membersMutex) {
+            if (members.isEmpty()) {
+                System.out.println("Not in system.");
+                return;
+            }
+            List<Integer> ids = new ArrayList<>(members.keySet());
+            Collections.sort(ids);
+            for (int memberId : ids) {
+                Member m = members.get(memberId);
+                System.out.println(memberId + " " + m.ip + ":" + m.port + " " + stateName(m.state)
+                        + " (" + m.incarnation + ")" + (m.end < 0 ? "" : " [" + m.start + ", " + m.end + "]"));
+            }
+        }
+    }
+
+    protected class GossipThread extends Thread implements Runnable {
+
+        private final Random random = new Random();
+
+        GossipThread() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(GOSSIP_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
                 }
+                round();
             }
         }
 
-        private void transferRequest() throws IOException {
-            if (args.length != 3) {
-                System.out.println("Error : Transfer request expects only 2 arguments");
-                return;
+        // Probe one random live peer, which doubles as failure detection
+        private void round() {
+            List<Integer> peers = new ArrayList<>();
+            List<Integer> expired = new ArrayList<>();
+            synchronized (membersMutex) {
+                for (Map.Entry<Integer, Member> e : members.entrySet()) {
+                    Member m = e.getValue();
+                    if (e.getKey() == id || !m.isLive())
+                        continue;
+
+                    // Suspicion times out into death unless the member refutes it
+                    if (m.state == SUSPECT && ++m.suspectRounds >= SUSPECT_ROUNDS) {
+                        m.state = DEAD;
+                        expired.add(e.getKey());
+                    } else {
+                        peers.add(e.getKey());
+                    }
+                }
             }
+            for (int memberId : expired)
+                repairRing(memberId);
 
-            String destIp = args[1];
-            int destPort;
-            try {
-                destPort = Integer.parseInt(args[2]);
-            } catch (NumberFormatException e) {
-                System.out.println("Error : " + args[2] + "is not an integer");
+            if (peers.isEmpty())
                 return;
+
+            int target = peers.get(random.nextInt(peers.size()));
+            Member m;
+            synchronized (membersMutex) {
+                m = members.get(target);
             }
+            if (m == null)
+                return;
 
-            StringBuilder message = new StringBuilder(TRANSFER + " " + endIndex + " ");
-            for (int i = id; i != endIndex + 1; i++) {
-                if (i == HASH_SIZE) {
-                    i = 0;
-                    continue;
-                }
-                synchronized (mapMutex) {
-                    if (map[i] != null) {
-                        message.append(i).append(",").append(map[i]);
-                        if (i != endIndex) {
-                            message.append(";");
-                        }
+            // One failed connect may only be our own link to the peer, so others try it before we suspect it
+            if (!trySend(GOSSIP + " " + ip + " " + listenPort + " " + digest(), m.ip, m.port)
+                    && !probeIndirectly(target, m)) {
+                synchronized (membersMutex) {
+                    if (m.state == ALIVE) {
+                        m.state = SUSPECT;
+                        m.suspectRounds = 0;
                     }
-                    map[i] = null;
                 }
             }
-            sendMessage(message.toString(), destIp, destPort);
         }
 
-        private void lookup() throws IOException {
-
-            if (args.length != 3) {
-                System.out.println("Error : Expected a key and id trace.");
-                return;
+        // True if any of up to PROBE_RELAYS other live peers reached the target within PROBE_TIMEOUT
+        private boolean probeIndirectly(int target, Member m) {
+            List<Member> relays = new ArrayList<>();
+            synchronized (membersMutex) {
+                for (Map.Entry<Integer, Member> e : members.entrySet()) {
+                    if (e.getKey() != id && e.getKey() != target && e.getValue().state == ALIVE)
+                        relays.add(e.getValue());
+                }
             }
+            if (relays.isEmpty())
+                return false;
+            Collections.shuffle(relays, random);
 
-            int key;
-            try {
-                key = Integer.parseInt(args[1]);
-            } catch (NumberFormatException e) {
-                System.out.println("Error : " + args[1] + "is not an integer");
-                return;
+            synchronized (probeAcks) {
+                probeAcks.remove(target);
             }
+            String request = PING_REQ + " " + target + " " + m.ip + " " + m.port + " " + ip + " " + listenPort;
+            int asked = 0;
+            for (int i = 0; i < Math.min(PROBE_RELAYS, relays.size()); i++) {
+                if (trySend(request, relays.get(i).ip, relays.get(i).port))
+                    asked++;
+            }
+            if (asked == 0)
+                return false;
 
-            // Update trace!
-            args[2] += "," + id;
-
-            if (isInRange(key)) {
-
-                String value;
-                synchronized (mapMutex) {
-                    value = map[key];
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+            synchronized (probeAcks) {
+                long wait;
+                while (!probeAcks.contains(target) && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        probeAcks.wait(wait);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
                 }
+                return probeAcks.remove(target);
+            }
+        }
+    }
 
-                String message = "";
-
-                if (value == null) {
-                    message += PRINT + " " + parseTrace(args[2], true) + "Key not found";
-                } else {
-                    message += PRINT + " " + parseTrace(args[2], true) + "Success! Found: \"" + value
-                            + "\" on Name Server " + id;
-                }
+    /* ******* LOAD REBALANCING ******* */
 
-                // Send to bootstrap
-                sendMessage(message, bootIp, bootPort);
+    protected static final int REBALANCE_INTERVAL = 5000;
+    protected static final int REBALANCE_COOLDOWN = 3 * REBALANCE_INTERVAL;
+    protected static final double REBALANCE_RATIO = 1.5;
+    protected static final long REBALANCE_MIN_DIFF = 10;
+    protected static final long REBALANCE_MIN_OPS = 100;
 
-            } else {
-                // System.out.println("Asking next name server");
-                String message = LOOKUP + " " + key + " " + args[2];
-                sendMessage(message, getNextIp(), getNextPort());
-            }
+    private long lastRebalance;
 
-        }
+    protected boolean rebalanceAllowed() {
+        return System.currentTimeMillis() - lastRebalance > REBALANCE_COOLDOWN;
+    }
 
-        private void print() {
+    protected void rebalanced() {
+        lastRebalance = System.currentTimeMillis();
+    }
 
-            int i = message.indexOf(' ');
-            if (i == -1) {
-                System.out.println("Error : Malformed print command.");
-                return;
+    // {decayed ops, keys} over the range we own
+    protected long[] loadStats() {
+        long ops = 0;
+        long keys = 0;
+        synchronized (mapMutex) {
+            for (int i = 0; i < HASH_SIZE; i++) {
+                if (!isInRange(i))
+                    continue;
+                ops += hits[i];
+                if (map[i] != null)
+                    keys++;
             }
+        }
+        return new long[] {ops, keys};
+    }
 
-            String msg = message.substring(i + 1);
-            System.out.println();
-            System.out.println(msg);
-            System.out.print(prompt);
+    // How many slots from one edge of our range carry about amount of load, callers hold mapMutex
+    protected int slotsToShed(long amount, boolean byOps, boolean fromHead) {
+        int max = rangeSize() / 2;
+        long moved = 0;
+        int slots = 0;
+        while (slots < max && moved < amount) {
+            int i = fromHead ? (startIndex + slots) % HASH_SIZE : (endIndex - slots + HASH_SIZE) % HASH_SIZE;
+            moved += byOps ? hits[i] : (map[i] != null ? 1 : 0);
+            slots++;
         }
+        return slots;
+    }
 
-        private void insert() throws IOException {
-            if (args.length != 4) {
-                System.out.println("Error : insert requires two arguments [key] and [value].");
-                return;
-            } else {
+    // Periodically reports our load to the successor, which moves the boundary between us if needed
+    protected class RebalanceThread extends Thread implements Runnable {
 
-                args[3] += "," + id;
+        RebalanceThread() {
+            setDaemon(true);
+        }
 
-                int key;
-                String value = args[2];
+        @Override
+        public void run() {
+            while (true) {
                 try {
-                    key = Integer.parseInt(args[1]);
-                } catch (NumberFormatException e) {
-                    System.out.println("Error : " + args[1] + " is not a number.");
+                    Thread.sleep(REBALANCE_INTERVAL);
+                } catch (InterruptedException e) {
                     return;
                 }
 
-                if (isInRange(key)) {
-                    boolean isAvailable = false;
-                    String curValue;
-                    synchronized (mapMutex) {
-                        curValue = map[key];
-                        if (curValue == null) {
-                            map[key] = value;
-                            isAvailable = true;
-                        }
-                    }
+                boolean inRing;
+                synchronized (membersMutex) {
+                    inRing = !members.isEmpty();
+                }
 
-                    String message = PRINT + " " + parseTrace(args[3], true);
-                    if (isAvailable) {
-                        message += "Successfully added (" + key + ", " + value + ") to Name Server " + id;
-                    } else {
-                        message += "Error : Value \"" + curValue + "\" already associated with key " + key;
-                    }
-                    sendMessage(message, bootIp, bootPort);
-                } else {
-                    String message = INSERT + " " + key + " " + value + " " + args[3];
-                    sendMessage(message, getNextIp(), getNextPort());
+                if (inRing && !draining && getNextId() != id) {
+                    long[] stats = loadStats();
+                    String message = LOAD + " " + ip + " " + listenPort + " " + id + " " + stats[0] + " " + stats[1]
+                            + " " + endIndex;
+                    trySend(message, getNextIp(), getNextPort());
+                }
+
+                // Halve every interval so old traffic fades out
+                synchronized (mapMutex) {
+                    for (int i = 0; i < HASH_SIZE; i++)
+                        hits[i] /= 2;
                 }
             }
         }
+    }
 
-        private void delete() throws IOException {
+    /* ******* RING VIEW ******* */
 
-            if (args.length != 3) {
-                System.out.println("Error : Expected a key to delete from the System, and a trace string.");
-                return;
-            }
+    // Walks the ring once from the entry node and collects every node's range
+    protected List<RingNode> fetchRing(String entryIp, int entryPort) throws IOException {
+        try (ServerSocket replySocket = new ServerSocket(0)) {
+            replySocket.setSoTimeout(60000);
 
-            // Update trace!
-            args[2] += "," + id;
+            String message = RING_WALK + " " + ip + " " + replySocket.getLocalPort() + " " + -1;
+            sendMessage(message, entryIp, entryPort);
 
-            int key;
-            try {
-                key = Integer.parseInt(args[1]);
-            } catch (NumberFormatException e) {
-                System.out.println("Error : " + args[1] + " is not a number.");
-                return;
+            String reply;
+            try (Socket sock = replySocket.accept();
+                 DataInputStream in = new DataInputStream(sock.getInputStream())) {
+                reply = in.readUTF();
             }
 
-            if (isInRange(key)) {
-                synchronized (mapMutex) {
-                    String value = map[key];
-                    if (value == null) {
+            String[] tokens = reply.split(" ");
+            if (tokens.length != 2 || !tokens[0].equals(RING_VIEW))
+                throw new IOException("Unexpected reply to ring walk: " + reply);
 
-                        String trace = parseTrace(args[2], true);
-                        String message = PRINT + " " + trace + "Key not found.";
-                        sendMessage(message, bootIp, bootPort);
-                    } else {
-                        map[key] = null;
-                        String trace = parseTrace(args[2], true);
-                        String message = PRINT + " " + trace + "Successful deletion";
-                        sendMessage(message, bootIp, bootPort);
-                    }
-                }
-            } else {
-                // System.out.println("Calling DELETE on next name server");
+            return parseRing(tokens[1]);
+        }
+    }
 
-                // COMMAND CONSTANT
-                String message = DELETE + " " + key + " " + args[2];
-                sendMessage(message, getNextIp(), getNextPort());
+    protected static List<RingNode> parseRing(String nodes) throws IOException {
+        List<RingNode> ring = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            String[] fields = node.split(":");
+            if (fields.length != 5)
+                throw new IOException("Malformed ring entry: " + node);
+            try {
+                ring.add(new RingNode(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), fields[3], Integer.parseInt(fields[4])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed ring entry: " + node);
             }
-
         }
+        return ring;
     }
 
-    /* ******* GENERAL HELPER FUNCTIONS ******* */
-
-    protected String parseTrace(String s, boolean checkFirst) {
-
-        StringBuilder ret = new StringBuilder();
-        // ret.append("Name Server Trace:\n");
-
-        String[] ids = s.split(",");
-        if (ids.length >= 1) {
-
-            if (checkFirst) {
-                ret.append("\tChecked Name Server ");
-                ret.append(ids[0]);
-                ret.append("\n");
+    // id:start:end:ip:port:version per member, for every member whose version the client doesn't have yet,
+    // or all of them when known is null. Members without a range go out as -1:-1 so clients drop them; a dead
+    // one is never re-versioned by itself, so its marker is put just past its last live version
+    protected String ringView(Map<Integer, Long> known) {
+        StringBuilder sb = new StringBuilder();
+        synchronized (membersMutex) {
+            publishRange();
+            for (Map.Entry<Integer, Member> e : members.entrySet()) {
+                Member m = e.getValue();
+                boolean live = m.isLive() && m.end >= 0;
+                long version = m.isLive() ? m.rangeVersion : m.rangeVersion + 1;
+                Long have = known == null ? null : known.get(e.getKey());
+                if (known != null && (have == null ? !live : have >= version))
+                    continue;
+                if (sb.length() > 0)
+                    sb.append(",");
+                sb.append(e.getKey()).append(":").append(live ? m.start : -1).append(":").append(live ? m.end : -1)
+                        .append(":").append(m.ip).append(":").append(m.port).append(":").append(version);
             }
+        }
+        return sb.length() == 0 ? NO_TRACE : sb.toString();
+    }
 
-            for (int i = 1; i < ids.length; i++) {
-                ret.append("\tContacted Name Server ");
-                ret.append(ids[i]);
-                ret.append("\n");
+    // Applies a ring view or update to a client's view, newer versions win. Entries that went -1 are kept,
+    // so an older copy arriving later can't bring the node back. Returns how many entries changed
+    protected static int mergeView(Map<Integer, RingNode> view, String entries) {
+        if (entries.equals(NO_TRACE))
+            return 0;
+        int changed = 0;
+        for (String entry : entries.split(",")) {
+            String[] fields = entry.split(":");
+            if (fields.length != 6)
+                continue;
+            RingNode node;
+            try {
+                node = new RingNode(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                        fields[3], Integer.parseInt(fields[4]), Long.parseLong(fields[5]));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            RingNode cur = view.get(node.id);
+            if (cur == null || node.version > cur.version) {
+                view.put(node.id, node);
+                changed++;
             }
         }
-
-        return ret.toString();
+        return changed;
     }
 
-    protected boolean isInRange(int key) {
-        return (id <= key && key <= endIndex);
-    }
+    // Asks a node for the entries of its view newer than the versions given, the answer is a RING_UPDATE
+    protected String fetchView(String nodeIp, int nodePort, Map<Integer, RingNode> view) throws IOException {
+        StringBuilder known = new StringBuilder();
+        for (RingNode node : view.values()) {
+            if (known.length() > 0)
+                known.append(",");
+            known.append(node.id).append(".").append(node.version);
+        }
 
+        try (ServerSocket replySocket = new ServerSocket(0)) {
+            replySocket.setSoTimeout(10000);
+            sendMessage(VIEW + " " + ip + " " + replySocket.getLocalPort() + " " + (known.length() == 0 ? NO_TRACE : known),
+                    nodeIp, nodePort);
 
-    /* ******* STUB MUTEX WRAPPER FUNCTIONS ******* */
+            String reply;
+            try (Socket sock = replySocket.accept();
+                 DataInputStream in = new DataInputStream(sock.getInputStream())) {
+                reply = in.readUTF();
+            }
 
-    protected String getPrevIp() {
-        String ip;
-        synchronized (prevMutex) {
-            if (prevServer == null)
-                return "";
-            ip = prevServer.getIp();
+            String[] tokens = reply.split(" ");
+            if (tokens.length != 2 || !tokens[0].equals(RING_UPDATE))
+                throw new IOException("Unexpected reply to view request: " + reply);
+            return tokens[1];
         }
-        return ip;
     }
 
-    protected int getPrevPort() {
-        int port;
-        synchronized (prevMutex) {
-            if (prevServer == null)
-                return -1;
-            port = prevServer.getPort();
+    // Falls back to the first node, which forwards anything it doesn't own
+    protected static int ownerOf(List<RingNode> ring, int key) {
+        for (int n = 0; n < ring.size(); n++) {
+            if (ring.get(n).covers(key))
+                return n;
         }
-        return port;
+        return 0;
     }
 
-    protected int getPrevId() {
-        int id;
-        synchronized (prevMutex) {
-            if (prevServer == null)
-                return -1;
-            id = prevServer.getId();
+    protected static class RingNode {
+        final int id;
+        final int startIndex;
+        final int endIndex;
+        final String ip;
+        final int port;
+        // Version of the entry in a ring view, a ring walk is always current
+        final long version;
+
+        RingNode(int id, int startIndex, int endIndex, String ip, int port) {
+            this(id, startIndex, endIndex, ip, port, 0);
         }
-        return id;
-    }
 
-    protected String getNextIp() {
-        String ip;
-        synchronized (nextMutex) {
-            if (nextServer == null)
-                return "";
-            ip = nextServer.getIp();
+        RingNode(int id, int startIndex, int endIndex, String ip, int port, long version) {
+            this.id = id;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.ip = ip;
+            this.port = port;
+            this.version = version;
         }
-        return ip;
-    }
 
-    protected int getNextPort() {
-        int port;
-        synchronized (nextMutex) {
-            if (nextServer == null)
-                return -1;
-            port = nextServer.getPort();
+        boolean covers(int key) {
+            if (endIndex < 0)
+                return false;
+            if (startIndex <= endIndex)
+                return startIndex <= key && key <= endIndex;
+            return key >= startIndex || key <= endIndex;
         }
-        return port;
     }
 
-    protected int getNextId() {
-        int id;
-        synchronized (nextMutex) {
-            if (nextServer == null)
-                return -1;
-            id = nextServer.getId();
-        }
-        return id;
-    }
+    /* ******* FRAMING ******* */
 
-    protected class NameServerStub {
+    // Largest frame writeUTF can carry
+    protected static final int MAX_FRAME = 65535;
 
-        private int id;
-        private String ip;
-        private int port;
+    // Scratch buffers for encoding frames and building messages, one per thread so they never need locking
+    private static final ThreadLocal<byte[]> FRAME = ThreadLocal.withInitial(() -> new byte[256]);
+    private static final ThreadLocal<StringBuilder> SCRATCH = ThreadLocal.withInitial(() -> new StringBuilder(256));
 
-        NameServerStub(String ip, int port, int id) {
-            this.ip = ip;
-            this.port = port;
-            this.id = id;
-        }
+    // The builder is shared by everything on this thread, use it for one message at a time
+    protected static StringBuilder scratch() {
+        StringBuilder sb = SCRATCH.get();
+        sb.setLength(0);
+        return sb;
+    }
 
-        public int getId() {
-            return id;
+    // Bytes chars from..to take in a frame, counted the way writeUTF does: NUL and up to U+07FF in two, the rest in three
+    protected static int utfLength(CharSequence s, int from, int to) {
+        int bytes = to - from;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == 0 || c >= 0x80)
+                bytes += c >= 0x800 ? 2 : 1;
         }
+        return bytes;
+    }
 
-        public void setId(int id) {
-            this.id = id;
+    // Same wire format as writeUTF, but ASCII messages are encoded into a reused buffer
+    protected static void writeFrame(OutputStream out, CharSequence message) throws IOException {
+        int len = message.length();
+        if (len <= MAX_FRAME) {
+            // Grows to the largest frame this thread has sent, short lived threads stay small
+            byte[] buf = FRAME.get();
+            if (buf.length < len + 2) {
+                buf = new byte[Math.min(MAX_FRAME + 2, Math.max(len + 2, buf.length * 2))];
+                FRAME.set(buf);
+            }
+            int i = 0;
+            for (; i < len; i++) {
+                char c = message.charAt(i);
+                // NUL and non-ASCII take more than one byte in modified UTF-8
+                if (c == 0 || c >= 0x80)
+                    break;
+                buf[i + 2] = (byte) c;
+            }
+            if (i == len) {
+                buf[0] = (byte) (len >>> 8);
+                buf[1] = (byte) len;
+                out.write(buf, 0, len + 2);
+                return;
+            }
         }
+        new DataOutputStream(out).writeUTF(message.toString());
+    }
 
-        public int getPort() {
-            return port;
+    // Reads one writeUTF frame into buf, ASCII frames become a string without readUTF's intermediate char[]
+    protected static String readFrame(InputStream in, byte[] buf) throws IOException {
+        int read = 0;
+        while (read < 2) {
+            int n = in.read(buf, read, 2 - read);
+            if (n < 0)
+                throw new EOFException();
+            read += n;
+        }
+        int len = ((buf[0] & 0xff) << 8) | (buf[1] & 0xff);
+        while (read < len + 2) {
+            int n = in.read(buf, read, len + 2 - read);
+            if (n < 0)
+                throw new EOFException();
+            read += n;
         }
+        for (int i = 2; i < len + 2; i++) {
+            if (buf[i] < 0)
+                return new DataInputStream(new ByteArrayInputStream(buf, 0, len + 2)).readUTF();
+        }
+        return new String(buf, 2, len, StandardCharsets.ISO_8859_1);
+    }
 
-        public void setPort(int port) {
-            this.port = port;
+    protected static int opcode(String message) {
+        int end = message.indexOf(' ');
+        if (end == -1)
+            end = message.length();
+        for (int op = 0; op < COMMANDS.length; op++) {
+            if (COMMANDS[op].length() == end && message.startsWith(COMMANDS[op]))
+                return op;
         }
+        return -1;
+    }
 
-        public String getIp() {
-            return ip;
+    // Same tokens as split(" "), without the regex check and intermediate list
+    protected static String[] tokenize(String message) {
+        int len = message.length();
+        while (len > 0 && message.charAt(len - 1) == ' ')
+            len--;
+        if (len == 0)
+            return message.isEmpty() ? new String[]{""} : new String[0];
+
+        int count = 1;
+        for (int i = 0; i < len; i++) {
+            if (message.charAt(i) == ' ')
+                count++;
         }
 
-        public void setIp(String ip) {
-            this.ip = ip;
+        String[] tokens = new String[count];
+        int from = 0;
+        for (int t = 0; t < count - 1; t++) {
+            int to = message.indexOf(' ', from);
+            tokens[t] = message.substring(from, to);
+            from = to + 1;
         }
+        tokens[count - 1] = message.substring(from, len);
+        return tokens;
+    }
 
+    // Index where the n-th space separated token starts, -1 if there are fewer tokens
+    protected static int tokenStart(String message, int n) {
+        int at = 0;
+        for (int t = 0; t < n; t++) {
+            at = message.indexOf(' ', at) + 1;
+            if (at == 0)
+                return -1;
+        }
+        return at;
     }
 
     /* ******* SOCKET WRAPPER METHODS ******* */
 
-    protected void sendMessage(String message, String ip, int port) throws IOException {
-        Socket socket = connect(ip, port, 60);
-        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-        out.writeUTF(message);
+    protected void sendMessage(CharSequence message, String ip, int port) throws IOException {
+        send(message, ip, port, connect(ip, port, 60));
+    }
+
+    // Gives up after maxTime seconds, or as soon as the peer's circuit opens
+    protected void sendMessage(CharSequence message, String ip, int port, int maxTime) throws IOException {
+        send(message, ip, port, connect(ip, port, maxTime, true));
+    }
+
+    private void send(CharSequence message, String ip, int port, Socket socket) throws IOException {
+        if (socket == null)
+            throw new IOException("Name Server at " + ip + ":" + port + " is unreachable");
+        framesSent.incrementAndGet();
+        charsSent.addAndGet(message.length());
+        OutputStream out = socket.getOutputStream();
+        writeFrame(out, message);
         socket.close();
         out.close();
         try {
@@ -860,27 +5441,113 @@ public class NameServer {
         }
     }
 
+    // Single attempt with a short timeout, for messages that are fine to lose
+    protected boolean trySend(String message, String ip, int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(ip, port), GOSSIP_TIMEOUT);
+            writeFrame(socket.getOutputStream(), message);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     protected Socket connect(String ip, int port, int maxTime) {
-        Socket newSocket;
-        int attempts = 0;
+        return connect(ip, port, maxTime, false);
+    }
+
+    // Retries for up to maxTime seconds, returns null if the peer could not be reached.
+    // Ring maintenance keeps retrying through an open circuit, it has nowhere else to go
+    protected Socket connect(String ip, int port, int maxTime, boolean failFast) {
+        Breaker breaker = breaker(ip, port);
+        long deadline = System.currentTimeMillis() + maxTime * 1000L;
+        int backoff = BACKOFF_BASE;
         while (true) {
+            if (failFast && breaker.isOpen())
+                return null;
+
+            Socket newSocket = new Socket();
             try {
-                newSocket = new Socket(ip, port);
-                break;
+                newSocket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+                newSocket.setSoTimeout(READ_TIMEOUT);
+                breaker.succeeded();
+                return newSocket;
             } catch (IOException e) {
-                // Errors expected, simply tries again 1 second later
+                // Errors expected, tries again after the backoff
+                breaker.failed();
+                try {
+                    newSocket.close();
+                } catch (IOException ignored) {
+                    //
+                }
             }
-            if (attempts >= maxTime)
+
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
                 return null;
 
-            attempts++;
+            // Full jitter keeps callers that failed together from retrying together
             try {
-                Thread.sleep(1000);
+                Thread.sleep(Math.min(left, backoff / 2 + ThreadLocalRandom.current().nextInt(backoff / 2 + 1)));
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                return null;
+            }
+            backoff = Math.min(BACKOFF_MAX, backoff * 2);
+        }
+    }
+
+    /* ******* CIRCUIT BREAKERS ******* */
+
+    protected static final int CONNECT_TIMEOUT = 1000;
+    protected static final int READ_TIMEOUT = 5000;
+    protected static final int BACKOFF_BASE = 100;
+    protected static final int BACKOFF_MAX = 4000;
+    protected static final int FORWARD_TIME = 5;
+    // Consecutive failed connect attempts before a peer is failed fast, and for how long
+    protected static final int BREAKER_THRESHOLD = 3;
+    protected static final int BREAKER_COOLDOWN = 5000;
+
+    protected final Map<String, Breaker> breakers = new HashMap<>();
+    protected final Object breakerMutex = new Object();
+
+    protected Breaker breaker(String ip, int port) {
+        String peer = ip + ":" + port;
+        synchronized (breakerMutex) {
+            Breaker breaker = breakers.get(peer);
+            if (breaker == null) {
+                breaker = new Breaker();
+                breakers.put(peer, breaker);
             }
+            return breaker;
+        }
+    }
+
+    protected boolean isTripped(String ip, int port) {
+        synchronized (breakerMutex) {
+            Breaker breaker = breakers.get(ip + ":" + port);
+            return breaker != null && breaker.isOpen();
+        }
+    }
+
+    // Open for the cooldown once the threshold is hit. After that it lets attempts through again,
+    // but a single further failure reopens it until a connect succeeds
+    protected static class Breaker {
+        private int failures;
+        private long openUntil;
+
+        synchronized boolean isOpen() {
+            return failures >= BREAKER_THRESHOLD && System.currentTimeMillis() < openUntil;
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+        }
+
+        synchronized void failed() {
+            failures++;
+            if (failures >= BREAKER_THRESHOLD && System.currentTimeMillis() >= openUntil)
+                openUntil = System.currentTimeMillis() + BREAKER_COOLDOWN;
         }
-        return newSocket;
     }
 }
 